@@ -0,0 +1,114 @@
+#!/bin/sh
+#
+# Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+#
+# Runs the splash screen benchmark (BenchmarkActivity) on a device or an
+# emulator and pulls its JSON report.
+#
+# Usage: run_benchmark.sh [-a avd] [-i apk] [-o report] [-t timeout]
+#
+#   -a avd      Boots the given AVD in a headless emulator first (and shuts it
+#               down once done). Otherwise the device selected by adb (see
+#               ANDROID_SERIAL) is used.
+#   -i apk      Installs the given FlattenHierarchy APK first.
+#   -o report   Where to write the report (splash_screen_benchmark.json by
+#               default).
+#   -t timeout  Maximum time (in seconds) to wait for the report (300 by
+#               default).
+#
+# Exits with a non-zero status if the report couldn't be collected.
+#
+
+PACKAGE=com.cyrilmottier.android.flattenhierarchy
+ACTIVITY=$PACKAGE/.BenchmarkActivity
+REPORT_FILE=files/splash_screen_benchmark.json
+
+AVD=
+APK=
+OUTPUT=splash_screen_benchmark.json
+TIMEOUT=300
+EMULATOR_PID=
+
+while getopts "a:i:o:t:" option; do
+    case $option in
+        a) AVD=$OPTARG ;;
+        i) APK=$OPTARG ;;
+        o) OUTPUT=$OPTARG ;;
+        t) TIMEOUT=$OPTARG ;;
+        *) sed -n '22,34p' "$0"; exit 2 ;;
+    esac
+done
+
+fail() {
+    echo "run_benchmark: $1" >&2
+    exit 1
+}
+
+cleanup() {
+    if [ -n "$EMULATOR_PID" ]; then
+        adb emu kill > /dev/null 2>&1 || kill "$EMULATOR_PID" 2> /dev/null
+    fi
+}
+trap cleanup EXIT
+
+# Reads the report from the private directory of the application. run-as only
+# works for debuggable builds: fall back to the full path (emulators run adbd
+# as root).
+read_report() {
+    adb shell "run-as $PACKAGE cat $REPORT_FILE 2> /dev/null || cat /data/data/$PACKAGE/$REPORT_FILE 2> /dev/null" | tr -d '\r'
+}
+
+if [ -n "$AVD" ]; then
+    emulator -avd "$AVD" -no-window -no-audio -no-boot-anim > /dev/null 2>&1 &
+    EMULATOR_PID=$!
+    adb wait-for-device || fail "no device"
+    # Old system images don't have sys.boot_completed: wait for the package
+    # manager instead
+    waited=0
+    until adb shell pm path android 2> /dev/null | grep -q package; do
+        sleep 2
+        waited=$((waited + 2))
+        [ $waited -lt "$TIMEOUT" ] || fail "emulator didn't boot in ${TIMEOUT}s"
+    done
+fi
+
+if [ -n "$APK" ]; then
+    adb install -r "$APK" | tr -d '\r' | grep -q Success || fail "unable to install $APK"
+fi
+
+# A report left by a previous run must not be mistaken for the new one
+adb shell "run-as $PACKAGE rm $REPORT_FILE 2> /dev/null; rm /data/data/$PACKAGE/$REPORT_FILE 2> /dev/null"
+adb shell am force-stop $PACKAGE > /dev/null 2>&1
+adb shell am start -n $ACTIVITY | tr -d '\r' | grep -q Error && fail "unable to start $ACTIVITY"
+
+waited=0
+report=
+while [ -z "$report" ]; do
+    sleep 2
+    waited=$((waited + 2))
+    [ $waited -lt "$TIMEOUT" ] || fail "no report after ${TIMEOUT}s"
+    report=$(read_report)
+    # Ignore a report that is still being written
+    case "$report" in
+        *"]}") ;;
+        *) report= ;;
+    esac
+done
+
+adb shell am force-stop $PACKAGE > /dev/null 2>&1
+echo "$report" > "$OUTPUT"
+echo "Report written to $OUTPUT"
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.flattenhierarchy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * Runs the splash screen methods of the MainActivity back to back and
+ * measures, for each of them, the time spent inflating, measuring and laying
+ * out and drawing the splash screen, the number of Views it creates and the
+ * number of objects allocated. Splash screens are built in a detached
+ * FrameLayout standing for the content View of the window and drawn in an
+ * off-screen Bitmap the size of the screen.
+ * <p>
+ * The results are displayed, logged and written as JSON in the files
+ * directory of the application (see REPORT_FILE_NAME) so that they can be
+ * collected by a script (see scripts/run_benchmark.sh). Results are only
+ * comparable between runs on the same device.
+ *
+ * @author Cyril Mottier
+ */
+public class BenchmarkActivity extends Activity {
+
+    private static final String LOG_TAG = BenchmarkActivity.class.getSimpleName();
+
+    public static final String REPORT_FILE_NAME = "splash_screen_benchmark.json";
+
+    private static final int WARM_UP_COUNT = 10;
+    private static final int ITERATION_COUNT = 50;
+    private static final int FRAME_COUNT = 20;
+
+    private static final int[] SPLASH_SCREENS = {
+            MainActivity.REGULAR_SPLASH_SCREEN, MainActivity.OPTIMIZED_SPLASH_SCREEN, MainActivity.VERY_OPTIMIZED_SPLASH_SCREEN,
+            MainActivity.FLATTENED_SPLASH_SCREEN
+    };
+
+    private static final String[] SPLASH_SCREEN_NAMES = {
+            "regular", "optimized", "very_optimized", "flattened"
+    };
+
+    /**
+     * The measurements of a splash screen. Durations are averages in
+     * microseconds.
+     */
+    private static final class Result {
+        String mName;
+        long mInflateTime;
+        long mLayoutTime;
+        long mFirstDrawTime;
+        long mDrawTime;
+        int mViewCount;
+        int mAllocationCount;
+        int mDrawAllocationCount;
+
+        String toJson() {
+            return "{\"name\": " + quote(mName) + ", \"inflateUs\": " + mInflateTime + ", \"layoutUs\": " + mLayoutTime + ", \"firstDrawUs\": "
+                    + mFirstDrawTime + ", \"drawUs\": " + mDrawTime + ", \"viewCount\": " + mViewCount + ", \"allocations\": "
+                    + mAllocationCount + ", \"drawAllocations\": " + mDrawAllocationCount + "}";
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-15s inflate %6d us  layout %6d us  first draw %6d us  draw %6d us  %2d views  %5d allocs  %4d allocs/frame",
+                    mName, mInflateTime, mLayoutTime, mFirstDrawTime, mDrawTime, mViewCount, mAllocationCount, mDrawAllocationCount);
+        }
+    }
+
+    private final Handler mHandler = new Handler();
+    private final Result[] mResults = new Result[SPLASH_SCREENS.length];
+    private TextView mReport;
+    private Bitmap mFrame;
+    private int mWidth;
+    private int mHeight;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mReport = new TextView(this);
+        mReport.setTypeface(Typeface.MONOSPACE);
+        final ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(mReport);
+        setContentView(scrollView);
+
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mWidth = metrics.widthPixels;
+        mHeight = metrics.heightPixels;
+        mFrame = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        report("Screen " + mWidth + "x" + mHeight + " (" + metrics.densityDpi + " dpi)");
+
+        /*
+         * Views are built on the main thread, as they would be by the
+         * MainActivity. Each splash screen is benchmarked in its own message
+         * so that the main thread isn't blocked for too long.
+         */
+        benchmarkLater(0);
+    }
+
+    private void benchmarkLater(final int index) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (isFinishing()) {
+                    return;
+                }
+                if (index < SPLASH_SCREENS.length) {
+                    mResults[index] = benchmark(SPLASH_SCREENS[index], SPLASH_SCREEN_NAMES[index]);
+                    report(mResults[index]);
+                    benchmarkLater(index + 1);
+                } else {
+                    mFrame.recycle();
+                    writeReport();
+                }
+            }
+        });
+    }
+
+    private Result benchmark(int splashScreen, String name) {
+        final Canvas canvas = new Canvas(mFrame);
+        final int widthMeasureSpec = MeasureSpec.makeMeasureSpec(mWidth, MeasureSpec.EXACTLY);
+        final int heightMeasureSpec = MeasureSpec.makeMeasureSpec(mHeight, MeasureSpec.EXACTLY);
+
+        final Result result = new Result();
+        result.mName = name;
+        for (int i = 0; i < WARM_UP_COUNT + ITERATION_COUNT; i++) {
+            final long start = System.nanoTime();
+            final ViewGroup content = new FrameLayout(this);
+            MainActivity.showSplashScreen(splashScreen, content);
+            final long inflated = System.nanoTime();
+            content.measure(widthMeasureSpec, heightMeasureSpec);
+            content.layout(0, 0, mWidth, mHeight);
+            final long laidOut = System.nanoTime();
+            content.draw(canvas);
+            final long drawn = System.nanoTime();
+            for (int j = 0; j < FRAME_COUNT; j++) {
+                content.draw(canvas);
+            }
+            final long end = System.nanoTime();
+
+            if (i >= WARM_UP_COUNT) {
+                result.mInflateTime += inflated - start;
+                result.mLayoutTime += laidOut - inflated;
+                result.mFirstDrawTime += drawn - laidOut;
+                result.mDrawTime += (end - drawn) / FRAME_COUNT;
+            }
+        }
+        result.mInflateTime /= ITERATION_COUNT * 1000;
+        result.mLayoutTime /= ITERATION_COUNT * 1000;
+        result.mFirstDrawTime /= ITERATION_COUNT * 1000;
+        result.mDrawTime /= ITERATION_COUNT * 1000;
+
+        /*
+         * Allocations are counted in a separate pass: counting them slows the
+         * allocations down and would distort the durations.
+         */
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            final ViewGroup content = new FrameLayout(this);
+            MainActivity.showSplashScreen(splashScreen, content);
+            content.measure(widthMeasureSpec, heightMeasureSpec);
+            content.layout(0, 0, mWidth, mHeight);
+            content.draw(canvas);
+            result.mAllocationCount = Debug.getThreadAllocCount();
+
+            Debug.resetThreadAllocCount();
+            for (int j = 0; j < FRAME_COUNT; j++) {
+                content.draw(canvas);
+            }
+            result.mDrawAllocationCount = Debug.getThreadAllocCount() / FRAME_COUNT;
+
+            // The content View stands for the one of the window
+            result.mViewCount = countViews(content) - 1;
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return result;
+    }
+
+    private static int countViews(View view) {
+        int count = 1;
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                count += countViews(group.getChildAt(i));
+            }
+        }
+        return count;
+    }
+
+    private void writeReport() {
+        final StringBuilder json = new StringBuilder();
+        json.append("{\"device\": ").append(quote(Build.MODEL)).append(", \"sdk\": ").append(Build.VERSION.SDK_INT);
+        json.append(", \"width\": ").append(mWidth).append(", \"height\": ").append(mHeight);
+        json.append(", \"iterations\": ").append(ITERATION_COUNT).append(", \"frames\": ").append(FRAME_COUNT);
+        json.append(", \"results\": [");
+        for (int i = 0; i < mResults.length; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(mResults[i].toJson());
+        }
+        json.append("]}");
+
+        final String report = json.toString();
+        Log.i(LOG_TAG, report);
+
+        final File file = new File(getFilesDir(), REPORT_FILE_NAME);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            writer.write(report);
+            writer.write('\n');
+            report("Report written to " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            report("Unable to write the report: " + e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the given string as a JSON string literal. Device names are
+     * chosen by manufacturers and may contain any character.
+     */
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private void report(Object result) {
+        final String line = result.toString();
+        Log.i(LOG_TAG, line);
+        mReport.append(line + "\n");
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.flattenhierarchy;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
+import android.graphics.drawable.TransitionDrawable;
+
+/**
+ * A Drawable wrapping a static composition of Drawables (a LayerDrawable, an
+ * InsetDrawable, ...) and flattening it into a single Bitmap. The wrapped
+ * Drawable is rendered once for the current size and density: each frame then
+ * only draws one Bitmap instead of every layer.
+ * <p>
+ * The Bitmap is rendered again when the size, the state or the level changes
+ * and when the wrapped Drawable invalidates itself. Animated compositions
+ * can't be flattened: the wrapped Drawable is drawn as is when it contains an
+ * Animatable or a TransitionDrawable or when it schedules or invalidates
+ * itself while drawing.
+ *
+ * @author Cyril Mottier
+ */
+public class FlattenedDrawable extends Drawable implements Drawable.Callback {
+
+    private final Drawable mDrawable;
+    private final Paint mPaint = new Paint();
+
+    private Bitmap mCache;
+    private int mCacheDensity;
+    private boolean mCacheValid;
+
+    private boolean mRendering;
+    private boolean mLive;
+
+    /**
+     * @param drawable The Drawable to flatten
+     */
+    public FlattenedDrawable(Drawable drawable) {
+        mDrawable = drawable;
+        mDrawable.setCallback(this);
+        mLive = isAnimated(drawable);
+    }
+
+    /**
+     * Returns the wrapped Drawable.
+     */
+    public Drawable getDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * Returns true if the wrapped Drawable is drawn from a Bitmap, false if it
+     * is drawn as is because it is animated.
+     */
+    public boolean isFlattened() {
+        return !mLive;
+    }
+
+    /**
+     * Looks for animated Drawables in the given composition. The children of
+     * the other containers (InsetDrawable, ...) can't be reached: they are
+     * detected when they schedule or invalidate themselves.
+     */
+    private static boolean isAnimated(Drawable drawable) {
+        if (drawable instanceof Animatable || drawable instanceof TransitionDrawable) {
+            return true;
+        }
+        if (drawable instanceof LayerDrawable) {
+            final LayerDrawable layers = (LayerDrawable) drawable;
+            final int count = layers.getNumberOfLayers();
+            for (int i = 0; i < count; i++) {
+                if (isAnimated(layers.getDrawable(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Stops flattening the wrapped Drawable. The paint attributes applied to
+     * the Bitmap are transferred to the wrapped Drawable.
+     */
+    private void goLive() {
+        if (!mLive) {
+            mLive = true;
+            mDrawable.setAlpha(mPaint.getAlpha());
+            mDrawable.setColorFilter(mPaint.getColorFilter());
+        }
+    }
+
+    private void releaseCache() {
+        if (mCache != null) {
+            mCache.recycle();
+            mCache = null;
+        }
+        mCacheValid = false;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        final Rect bounds = getBounds();
+        if (!mLive && !bounds.isEmpty()) {
+            final int density = canvas.getDensity();
+            if ((mCacheValid && mCacheDensity == density) || render(bounds, density)) {
+                // The Bitmap is drawn in a rectangle so that it is never
+                // scaled according to its density
+                canvas.drawBitmap(mCache, null, bounds, mPaint);
+                return;
+            }
+        }
+        if (mCache != null) {
+            releaseCache();
+        }
+        mDrawable.draw(canvas);
+    }
+
+    /**
+     * Renders the wrapped Drawable in the cache. Returns false if it can't be
+     * flattened.
+     */
+    private boolean render(Rect bounds, int density) {
+        final int width = bounds.width();
+        final int height = bounds.height();
+        if (mCache == null || mCache.getWidth() != width || mCache.getHeight() != height) {
+            releaseCache();
+            try {
+                mCache = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                return false;
+            }
+        } else {
+            mCache.eraseColor(Color.TRANSPARENT);
+        }
+
+        final Canvas canvas = new Canvas(mCache);
+        canvas.setDensity(density);
+        canvas.translate(-bounds.left, -bounds.top);
+        mRendering = true;
+        try {
+            mDrawable.draw(canvas);
+        } finally {
+            mRendering = false;
+        }
+        if (mLive) {
+            // The wrapped Drawable invalidated itself while being drawn
+            return false;
+        }
+
+        mCacheDensity = density;
+        mCacheValid = true;
+        return true;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        if (mLive) {
+            mDrawable.setAlpha(alpha);
+        }
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mPaint.setColorFilter(cf);
+        if (mLive) {
+            mDrawable.setColorFilter(cf);
+        }
+        invalidateSelf();
+    }
+
+    @Override
+    public void setDither(boolean dither) {
+        mDrawable.setDither(dither);
+        mCacheValid = false;
+    }
+
+    @Override
+    public void setFilterBitmap(boolean filter) {
+        mDrawable.setFilterBitmap(filter);
+        mCacheValid = false;
+    }
+
+    @Override
+    public int getOpacity() {
+        if (!mLive && mPaint.getAlpha() < 255) {
+            return PixelFormat.TRANSLUCENT;
+        }
+        return mDrawable.getOpacity();
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        mDrawable.setBounds(bounds);
+        if (bounds.isEmpty()) {
+            releaseCache();
+        } else if (mCache != null && (mCache.getWidth() != bounds.width() || mCache.getHeight() != bounds.height())) {
+            // A move doesn't change the pixels: the Bitmap is drawn at the
+            // bounds
+            mCacheValid = false;
+        }
+    }
+
+    @Override
+    public boolean isStateful() {
+        return mDrawable.isStateful();
+    }
+
+    @Override
+    protected boolean onStateChange(int[] state) {
+        if (mDrawable.setState(state)) {
+            mCacheValid = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean onLevelChange(int level) {
+        if (mDrawable.setLevel(level)) {
+            mCacheValid = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        mDrawable.setVisible(visible, restart);
+        return super.setVisible(visible, restart);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mDrawable.getIntrinsicWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mDrawable.getIntrinsicHeight();
+    }
+
+    @Override
+    public int getMinimumWidth() {
+        return mDrawable.getMinimumWidth();
+    }
+
+    @Override
+    public int getMinimumHeight() {
+        return mDrawable.getMinimumHeight();
+    }
+
+    @Override
+    public boolean getPadding(Rect padding) {
+        return mDrawable.getPadding(padding);
+    }
+
+    @Override
+    public Drawable mutate() {
+        mDrawable.mutate();
+        return this;
+    }
+
+    @Override
+    public ConstantState getConstantState() {
+        final ConstantState state = mDrawable.getConstantState();
+        return (state == null) ? null : new FlattenedState(state, getChangingConfigurations());
+    }
+
+    public void invalidateDrawable(Drawable who) {
+        if (who == mDrawable) {
+            if (mRendering) {
+                goLive();
+            }
+            mCacheValid = false;
+            invalidateSelf();
+        }
+    }
+
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+        goLive();
+        scheduleSelf(what, when);
+    }
+
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+        unscheduleSelf(what);
+    }
+
+    final static class FlattenedState extends ConstantState {
+
+        final ConstantState mDrawableState;
+        final int mChangingConfigurations;
+
+        FlattenedState(ConstantState drawableState, int changingConfigurations) {
+            mDrawableState = drawableState;
+            mChangingConfigurations = changingConfigurations;
+        }
+
+        @Override
+        public Drawable newDrawable() {
+            return new FlattenedDrawable(mDrawableState.newDrawable());
+        }
+
+        @Override
+        public int getChangingConfigurations() {
+            return mChangingConfigurations | mDrawableState.getChangingConfigurations();
+        }
+    }
+}
@@ -19,31 +19,43 @@ package com.cyrilmottier.android.flattenhierarchy;
 import android.app.Activity;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
 
 /**
  * The following activity shows how to create an optimized splash screen that
  * adapts to different screen resolution and densities using as few Views as
  * possible. The trick is based on some Drawables' features.
+ * <p>
+ * The cost of each method can be measured with the BenchmarkActivity.
  * 
  * @author Cyril Mottier
  */
 public class MainActivity extends Activity {
 
-    private static final int REGULAR_SPLASH_SCREEN = 0;
-    private static final int OPTIMIZED_SPLASH_SCREEN = 1;
-    private static final int VERY_OPTIMIZED_SPLASH_SCREEN = 2;
+    static final int REGULAR_SPLASH_SCREEN = 0;
+    static final int OPTIMIZED_SPLASH_SCREEN = 1;
+    static final int VERY_OPTIMIZED_SPLASH_SCREEN = 2;
+    static final int FLATTENED_SPLASH_SCREEN = 3;
 
     /**
-     * Set the following variable to switch between the "regular", "optimized"
-     * and "very optimized" methods.
+     * Set the following variable to switch between the "regular", "optimized",
+     * "very optimized" and "flattened" methods.
      */
     private static final int CURRENT_SPLASH_SCREEN = REGULAR_SPLASH_SCREEN;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        showSplashScreen(CURRENT_SPLASH_SCREEN, (ViewGroup) findViewById(android.R.id.content));
+    }
 
-        switch (CURRENT_SPLASH_SCREEN) {
+    /**
+     * Displays the given splash screen in the given content View. The
+     * BenchmarkActivity uses it to build the splash screens off-screen.
+     */
+    static void showSplashScreen(int splashScreen, ViewGroup content) {
+        switch (splashScreen) {
             case REGULAR_SPLASH_SCREEN:
 
                 /*
@@ -55,7 +67,7 @@ public class MainActivity extends Activity {
                  * instance). See resources/regular.png to see the view
                  * hierarchy.
                  */
-                setContentView(R.layout.regular_splash_screen);
+                LayoutInflater.from(content.getContext()).inflate(R.layout.regular_splash_screen, content);
                 break;
 
             case OPTIMIZED_SPLASH_SCREEN:
@@ -66,7 +78,7 @@ public class MainActivity extends Activity {
                  * screen components via a LayerDrawable. See
                  * resources/optimized.png to see the view hierarchy.
                  */
-                setContentView(R.layout.optimized_splash_screen);
+                LayoutInflater.from(content.getContext()).inflate(R.layout.optimized_splash_screen, content);
                 break;
 
             case VERY_OPTIMIZED_SPLASH_SCREEN:
@@ -82,10 +94,22 @@ public class MainActivity extends Activity {
                  * builds. See resources/very_optimized.png to see the view
                  * hierarchy.
                  */
-                Drawable d = getResources().getDrawable(R.drawable.ss_background);
-                findViewById(android.R.id.content).setBackgroundDrawable(d);
+                Drawable d = content.getResources().getDrawable(R.drawable.ss_background);
+                content.setBackgroundDrawable(d);
+                break;
+
+            case FLATTENED_SPLASH_SCREEN:
+
+                /*
+                 * Same as the "very optimized" method but the layers are
+                 * rendered once in a Bitmap by a FlattenedDrawable. Each frame
+                 * then draws a single Bitmap instead of a gradient and three
+                 * Bitmaps. The Bitmap is rendered again when the size of the
+                 * screen changes.
+                 */
+                d = new FlattenedDrawable(content.getResources().getDrawable(R.drawable.ss_background));
+                content.setBackgroundDrawable(d);
                 break;
-                
         }
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * Decodes encoded images at the size they are going to be displayed at. The
+ * dimensions of the image are read first in order to decode it with the
+ * largest possible subsampling. The subsampled Bitmap is then scaled down to
+ * the exact target size.
+ * <p>
+ * The final scaled Bitmap is drawn into a Bitmap taken from a BitmapPool when
+ * possible. Decoding directly into a reused Bitmap
+ * (BitmapFactory.Options.inBitmap) isn't available on the platform versions
+ * this project targets.
+ *
+ * @author Cyril Mottier
+ */
+final class BitmapDecoder {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = BitmapDecoder.class.getSimpleName();
+
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+    private BitmapDecoder() {
+    }
+
+    /**
+     * Decodes the given image at the target size.
+     *
+     * @param data The encoded image
+     * @param targetWidth The width at which the image will be displayed or 0 if
+     *            unknown
+     * @param targetHeight The height at which the image will be displayed or 0
+     *            if unknown
+     * @param pool The pool in which the scaled Bitmap may be taken or null
+     * @param outOpaque If not null, its first element is set to true if the
+     *            image has no alpha channel. The scaled Bitmap always has one.
+     * @return The decoded Bitmap or null if the data can't be decoded
+     */
+    static Bitmap decode(byte[] data, int targetWidth, int targetHeight, BitmapPool pool, boolean[] outOpaque) {
+        return decode(data, targetWidth, targetHeight, false, pool, outOpaque);
+    }
+
+    /**
+     * Same as decode(byte[], int, int, BitmapPool, boolean[]) but, if
+     * keepAspectRatio is true, the image is decoded at the smallest size
+     * covering the target size while keeping its aspect ratio. The decoded
+     * Bitmap is then meant to be cropped by a Transformation.
+     */
+    static Bitmap decode(byte[] data, int targetWidth, int targetHeight, boolean keepAspectRatio, BitmapPool pool, boolean[] outOpaque) {
+        if (targetWidth <= 0 && targetHeight <= 0) {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+            setOpaque(outOpaque, bitmap);
+            return bitmap;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        /*
+         * Computes the missing target dimension (if any) so that the aspect
+         * ratio of the image is kept.
+         */
+        if (targetWidth <= 0) {
+            targetWidth = Math.max(1, width * targetHeight / height);
+        } else if (targetHeight <= 0) {
+            targetHeight = Math.max(1, height * targetWidth / width);
+        } else if (keepAspectRatio) {
+            if ((long) width * targetHeight > (long) height * targetWidth) {
+                targetWidth = Math.max(1, (int) ((long) width * targetHeight / height));
+            } else {
+                targetHeight = Math.max(1, (int) ((long) height * targetWidth / width));
+            }
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(width, height, targetWidth, targetHeight);
+        final Bitmap sampled = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (sampled == null) {
+            return null;
+        }
+        setOpaque(outOpaque, sampled);
+
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Decoded " + width + "x" + height + " image with sample size " + options.inSampleSize + " for a " + targetWidth + "x"
+                    + targetHeight + " target");
+        }
+
+        /*
+         * Images smaller than the target are not scaled up: the Drawable will
+         * be stretched when drawn anyway.
+         */
+        if (sampled.getWidth() <= targetWidth && sampled.getHeight() <= targetHeight) {
+            return sampled;
+        }
+
+        Bitmap.Config config = sampled.getConfig();
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap scaled = (pool == null) ? null : pool.get(targetWidth, targetHeight, config);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(targetWidth, targetHeight, config);
+        } else if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Reusing a pooled " + targetWidth + "x" + targetHeight + " bitmap");
+        }
+
+        final Canvas canvas = new Canvas(scaled);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        canvas.drawBitmap(sampled, null, new Rect(0, 0, targetWidth, targetHeight), SCALE_PAINT);
+        sampled.recycle();
+        return scaled;
+    }
+
+    /**
+     * Decodes a coarse preview of a partially downloaded image. Depending on
+     * the format of the image, the preview is either a complete low quality
+     * image (early scans of a progressive JPEG) or the top part of the image.
+     *
+     * @param data The partially downloaded encoded image
+     * @param length The number of bytes available in data
+     * @param targetWidth The width at which the image will be displayed or 0 if
+     *            unknown
+     * @param targetHeight The height at which the image will be displayed or 0
+     *            if unknown
+     * @param subsampling The subsampling to apply in addition to the one
+     *            required to match the target size
+     * @return The preview or null if the available data is not sufficient
+     */
+    static Bitmap decodePreview(byte[] data, int length, int targetWidth, int targetHeight, int subsampling) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        if (targetWidth > 0 || targetHeight > 0) {
+            sampleSize = computeSampleSize(options.outWidth, options.outHeight, Math.max(targetWidth, 1), Math.max(targetHeight, 1));
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize * subsampling;
+        /*
+         * Previews of opaque images are decoded in RGB_565 to halve their
+         * size. Other formats (PNG, GIF, ...) may have an alpha channel that
+         * RGB_565 would render as black.
+         */
+        options.inPreferredConfig = hasAlpha(options.outMimeType) ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeByteArray(data, 0, length, options);
+    }
+
+    /**
+     * Returns true if images of the given MIME type may have an alpha
+     * channel. JPEG is the only common format without alpha.
+     */
+    private static boolean hasAlpha(String mimeType) {
+        return !"image/jpeg".equalsIgnoreCase(mimeType);
+    }
+
+    private static void setOpaque(boolean[] outOpaque, Bitmap bitmap) {
+        if (outOpaque != null) {
+            outOpaque[0] = bitmap != null && !bitmap.hasAlpha();
+        }
+    }
+
+    /**
+     * Returns the largest power of 2 sample size keeping the subsampled image
+     * larger than or equal to the target size.
+     */
+    static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * A reference counted handle on a downloaded Drawable shared by several
+ * RemoteDrawables. Each RemoteDrawable displaying the Drawable holds a
+ * reference. The handle owns the reference the DrawableDownloader retained
+ * when it delivered the Drawable: the Bitmap stays retained as long as the
+ * handle has at least one holder. Once the last holder releases it, the
+ * handle is dead: the Drawable is released to the DrawableDownloader, its
+ * Bitmap may be reused by the BitmapPool and no new reference can be
+ * acquired.
+ * <p>
+ * Handles are only accessed from the main thread.
+ *
+ * @author Cyril Mottier
+ */
+final class BitmapHandle {
+
+    private final Drawable mDrawable;
+    private final int mQuality;
+    private int mRefCount;
+    private boolean mDead;
+
+    /**
+     * Creates a new handle on the given Drawable. The handle has no holder
+     * and must be acquired right away so that the Drawable is released once
+     * it isn't displayed anymore.
+     *
+     * @param drawable The Drawable as delivered (and retained) by the
+     *            DrawableDownloader
+     * @param quality The quality of the Drawable (DrawableDownloader.QUALITY_FULL
+     *            or the quality of a preview)
+     */
+    BitmapHandle(Drawable drawable, int quality) {
+        mDrawable = drawable;
+        mQuality = quality;
+    }
+
+    int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Registers a new holder and returns a new instance of the Drawable
+     * sharing its pixels. Returns null if the handle is dead.
+     */
+    Drawable acquire() {
+        if (mDead) {
+            return null;
+        }
+        mRefCount++;
+        final Drawable.ConstantState state = mDrawable.getConstantState();
+        return (state == null) ? mDrawable : state.newDrawable();
+    }
+
+    /**
+     * Unregisters a holder. The handle dies once all holders are gone.
+     */
+    void release() {
+        if (mRefCount > 0 && --mRefCount == 0) {
+            mDead = true;
+            DrawableDownloader.getInstance().release(mDrawable);
+        }
+    }
+
+    boolean isDead() {
+        return mDead;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * A pool of Bitmaps that are not used anymore and can be drawn into instead of
+ * allocating new Bitmaps. Bitmaps are bucketed by size and configuration and
+ * the pool is bounded by the number of bytes used by the pooled Bitmaps.
+ * <p>
+ * In order to know when a Bitmap isn't used anymore, its users (the memory
+ * cache, the RemoteDrawables displaying it, ...) have to acquire and release
+ * it. A Bitmap enters the pool when its last user releases it. Only mutable
+ * Bitmaps are pooled as the others can't be drawn into.
+ *
+ * @author Cyril Mottier
+ */
+public class BitmapPool {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = BitmapPool.class.getSimpleName();
+
+    private final int mMaxSize;
+
+    /*
+     * The following fields are guarded by the BitmapPool instance. mPooled
+     * contains all pooled Bitmaps from the least to the most recently pooled.
+     * mRefCounts holds its Bitmaps weakly (Bitmap doesn't override equals) so
+     * that the Bitmaps of collected RemoteDrawables that have never been
+     * released don't leak.
+     */
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+    private final LinkedList<Bitmap> mPooled = new LinkedList<Bitmap>();
+    private final WeakHashMap<Bitmap, Integer> mRefCounts = new WeakHashMap<Bitmap, Integer>();
+    private int mSize;
+
+    private long mRequestCount;
+    private long mReuseCount;
+    private long mPooledCount;
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxSize The maximum number of bytes the pooled Bitmaps may use
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a pooled Bitmap with the given size and configuration or null if
+     * there is none. The content of the returned Bitmap is undefined.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        mRequestCount++;
+        final ArrayList<Bitmap> bucket = mBuckets.get(getBucketKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mPooled.remove(bitmap);
+        mSize -= sizeOf(bitmap);
+        mReuseCount++;
+        return bitmap;
+    }
+
+    /**
+     * Registers a new user of the given Bitmap. A Bitmap that has been
+     * released by all of its users but hasn't been reused yet is taken back
+     * from the pool.
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        final Integer count = mRefCounts.get(bitmap);
+        if (count == null) {
+            if (removeFromPool(bitmap) && DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Taking back a pooled bitmap");
+            }
+            mRefCounts.put(bitmap, 1);
+        } else {
+            mRefCounts.put(bitmap, count + 1);
+        }
+    }
+
+    /**
+     * Unregisters a user of the given Bitmap. The Bitmap is pooled once all of
+     * its users have released it.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        final Integer count = mRefCounts.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mRefCounts.put(bitmap, count - 1);
+            return;
+        }
+
+        mRefCounts.remove(bitmap);
+        pool(bitmap);
+    }
+
+    /**
+     * Pools the given Bitmap which has no user (an intermediate Bitmap for
+     * instance). A Bitmap that can't be pooled is recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (mRefCounts.containsKey(bitmap)) {
+            return;
+        }
+        if (!pool(bitmap)) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Adds the given Bitmap to the pool. Returns false if it can't be pooled.
+     * Must be called with the lock held.
+     */
+    private boolean pool(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) {
+            return false;
+        }
+
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+
+        final Long key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mPooled.addLast(bitmap);
+        mSize += size;
+        mPooledCount++;
+
+        while (mSize > mMaxSize) {
+            final Bitmap oldest = mPooled.getFirst();
+            removeFromPool(oldest);
+            // Nobody uses the Bitmap anymore. Its pixels can be freed now.
+            oldest.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * Removes all Bitmaps from the pool.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : mPooled) {
+            bitmap.recycle();
+        }
+        mPooled.clear();
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the number of bytes used by the pooled Bitmaps.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times a Bitmap has been requested from the pool.
+     */
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the number of times a pooled Bitmap has been reused.
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    /**
+     * Returns the number of Bitmaps that entered the pool.
+     */
+    public synchronized long getPooledCount() {
+        return mPooledCount;
+    }
+
+    /**
+     * Returns the ratio of requests that have been satisfied by a pooled
+     * Bitmap.
+     */
+    public synchronized float getReuseRate() {
+        return (mRequestCount == 0) ? 0 : (float) mReuseCount / mRequestCount;
+    }
+
+    private boolean removeFromPool(Bitmap bitmap) {
+        final ArrayList<Bitmap> bucket = mBuckets.get(getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+        if (bucket == null || !bucket.remove(bitmap)) {
+            return false;
+        }
+        mPooled.remove(bitmap);
+        mSize -= sizeOf(bitmap);
+        return true;
+    }
+
+    private static Long getBucketKey(int width, int height, Bitmap.Config config) {
+        final int configIndex = (config == null) ? 0 : config.ordinal() + 1;
+        return ((long) width << 32) | ((long) height << 8) | configIndex;
+    }
+
+    static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
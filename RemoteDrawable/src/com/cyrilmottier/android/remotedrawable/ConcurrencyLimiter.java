@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * Computes the number of downloads that may run concurrently from the
+ * measured latency and throughput of the completed requests. The limit is
+ * adjusted using AIMD (additive increase, multiplicative decrease):
+ * <ul>
+ * <li>The limit is increased by one each time a full window of requests (as
+ * many requests as the current limit) completes without congestion while all
+ * download slots are in use.</li>
+ * <li>The limit is decreased by a quarter when the link looks congested: a
+ * request timed out, the server reported an overload or the latency (time to
+ * the first byte of the response) grew well above its baseline.</li>
+ * </ul>
+ * The latency doesn't depend on the size of the downloaded images, unlike the
+ * total download time, and is therefore used as the congestion signal. Its
+ * baseline is a long-term average rather than the lowest latency ever seen:
+ * with mixed traffic (several hosts, small and large responses), the recent
+ * latency stays well above the minimum even when nothing is congested. The
+ * congestion signal is therefore the gradient between the short-term and the
+ * long-term averages. The throughput is measured for information purpose.
+ *
+ * @author Cyril Mottier
+ */
+public class ConcurrencyLimiter {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = ConcurrencyLimiter.class.getSimpleName();
+
+    /**
+     * Interface definition of a callback to be invoked when the limit
+     * changes. The callback is invoked on the thread that reported the
+     * sample causing the change.
+     */
+    public static interface OnLimitChangedListener {
+        void onLimitChanged(int oldLimit, int newLimit, String reason);
+    }
+
+    /**
+     * The latency is considered as congested when it exceeds its baseline by
+     * this factor.
+     */
+    private static final float CONGESTION_LATENCY_FACTOR = 2.0f;
+
+    /**
+     * Multiplicative decrease factor applied on congestion.
+     */
+    private static final float DECREASE_FACTOR = 0.75f;
+
+    /**
+     * Weight of a new sample in the smoothed (short-term) values.
+     */
+    private static final float SMOOTHING_FACTOR = 0.2f;
+
+    /**
+     * Weight of a new sample in the long-term average latency used as the
+     * baseline. It follows the traffic mix over a hundred or so requests.
+     */
+    private static final float BASELINE_SMOOTHING_FACTOR = 0.01f;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    /*
+     * The following fields are guarded by the ConcurrencyLimiter instance.
+     */
+    private int mLimit;
+    private int mInFlight;
+    private int mWindowSuccesses;
+    private int mSamplesSinceDecrease;
+    private float mBaselineLatency = -1;
+    private float mSmoothedLatency = -1;
+    private float mSmoothedThroughput = -1;
+    private String mLastChangeReason;
+    private OnLimitChangedListener mListener;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param initialLimit The limit to start with
+     * @param minLimit The lowest limit
+     * @param maxLimit The highest limit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid bounds [" + minLimit + ", " + maxLimit + "]");
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        mSamplesSinceDecrease = mLimit;
+    }
+
+    public synchronized void setOnLimitChangedListener(OnLimitChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the number of downloads that may currently run concurrently.
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    public int getMinLimit() {
+        return mMinLimit;
+    }
+
+    public int getMaxLimit() {
+        return mMaxLimit;
+    }
+
+    /**
+     * Returns the reason of the last change of the limit or null if it never
+     * changed.
+     */
+    public synchronized String getLastChangeReason() {
+        return mLastChangeReason;
+    }
+
+    /**
+     * Returns the smoothed latency (in milliseconds) or -1 if unknown.
+     */
+    public synchronized float getLatency() {
+        return mSmoothedLatency;
+    }
+
+    /**
+     * Returns the smoothed throughput of a single request (in bytes per
+     * second) or -1 if unknown.
+     */
+    public synchronized float getThroughput() {
+        return mSmoothedThroughput;
+    }
+
+    /**
+     * Must be called when a request starts.
+     */
+    public synchronized void onRequestStarted() {
+        mInFlight++;
+    }
+
+    /**
+     * Waits until fewer requests than the limit are running, then registers a
+     * new request (as onRequestStarted() does). Must be used when the requests
+     * don't occupy a thread each (asynchronous transports): the number of
+     * threads doesn't bound the number of running requests anymore.
+     */
+    public synchronized void awaitRequestSlot() throws InterruptedException {
+        while (mInFlight >= mLimit) {
+            wait();
+        }
+        mInFlight++;
+    }
+
+    /**
+     * Must be called when a request completes successfully.
+     *
+     * @param latency The time (in milliseconds) until the response was
+     *            received
+     * @param transferTime The time (in milliseconds) spent reading the
+     *            response body
+     * @param byteCount The number of bytes of the response body
+     */
+    public void onRequestCompleted(long latency, long transferTime, long byteCount) {
+        OnLimitChangedListener listener = null;
+        int oldLimit = 0;
+        int newLimit = 0;
+        String reason = null;
+
+        synchronized (this) {
+            final boolean saturated = mInFlight >= mLimit;
+            mInFlight--;
+            mSamplesSinceDecrease++;
+            notifyAll();
+
+            if (transferTime > 0) {
+                mSmoothedThroughput = smooth(mSmoothedThroughput, byteCount * 1000f / transferTime, SMOOTHING_FACTOR);
+            }
+            mSmoothedLatency = smooth(mSmoothedLatency, latency, SMOOTHING_FACTOR);
+            mBaselineLatency = smooth(mBaselineLatency, latency, BASELINE_SMOOTHING_FACTOR);
+
+            oldLimit = mLimit;
+            if (mSmoothedLatency > CONGESTION_LATENCY_FACTOR * Math.max(mBaselineLatency, 1)) {
+                reason = "latency " + (int) mSmoothedLatency + "ms exceeds average " + (int) mBaselineLatency + "ms";
+                newLimit = decrease();
+            } else if (saturated && ++mWindowSuccesses >= mLimit) {
+                mWindowSuccesses = 0;
+                reason = "window of " + mLimit + " requests completed at " + (int) mSmoothedLatency + "ms";
+                newLimit = Math.min(mLimit + 1, mMaxLimit);
+            } else {
+                newLimit = mLimit;
+            }
+
+            if (newLimit != oldLimit) {
+                listener = applyLimit(newLimit, reason);
+            }
+        }
+
+        if (listener != null) {
+            listener.onLimitChanged(oldLimit, newLimit, reason);
+        }
+    }
+
+    /**
+     * Must be called when a request fails.
+     *
+     * @param congestionReason The reason why the failure is a sign of
+     *            congestion ("request timed out", "server unavailable", ...)
+     *            or null if it isn't
+     */
+    public void onRequestFailed(String congestionReason) {
+        OnLimitChangedListener listener = null;
+        int oldLimit = 0;
+        int newLimit = 0;
+
+        synchronized (this) {
+            mInFlight--;
+            mSamplesSinceDecrease++;
+            notifyAll();
+            if (congestionReason == null) {
+                return;
+            }
+            oldLimit = mLimit;
+            newLimit = decrease();
+            if (newLimit != oldLimit) {
+                listener = applyLimit(newLimit, congestionReason);
+            }
+        }
+
+        if (listener != null) {
+            listener.onLimitChanged(oldLimit, newLimit, congestionReason);
+        }
+    }
+
+    /**
+     * Returns the decreased limit. The requests running when the limit has
+     * been decreased still suffer from the congestion: the limit isn't
+     * decreased again until a full window of requests has completed. Must be
+     * called with the lock held.
+     */
+    private int decrease() {
+        mWindowSuccesses = 0;
+        if (mSamplesSinceDecrease < mLimit) {
+            return mLimit;
+        }
+        return Math.max((int) (mLimit * DECREASE_FACTOR), mMinLimit);
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private OnLimitChangedListener applyLimit(int newLimit, String reason) {
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Concurrency limit " + mLimit + " -> " + newLimit + ": " + reason);
+        }
+        if (newLimit < mLimit) {
+            mSamplesSinceDecrease = 0;
+        }
+        mLimit = newLimit;
+        mLastChangeReason = reason;
+        notifyAll();
+        return mListener;
+    }
+
+    private static float smooth(float smoothed, float sample, float factor) {
+        return (smoothed < 0) ? sample : smoothed + factor * (sample - smoothed);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.HashMap;
+
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * A thread-safe index mapping the variant keys of the requested URLs to the
+ * keys of their decoded content in the memory cache. Several URLs serving the
+ * same bytes are mapped to the same content key: the Drawable is decoded and
+ * cached once.
+ * <p>
+ * The index doesn't bound itself: it follows the memory cache. A variant key
+ * is only mapped while the Drawable of its content key is cached. Once the
+ * cache evicts it, remove(String) forgets all the variant keys mapped to the
+ * content key. The size of the index is therefore bounded by the byte budget
+ * of the cache.
+ * <p>
+ * As this index holds an entry per requested variant, it is indexed by the
+ * 64-bit fingerprints of the variant keys in a LongHashMap. Each entry is a
+ * single node also chaining the variants sharing the same content key. The
+ * variant key is kept in the node to detect fingerprint collisions.
+ *
+ * @author Cyril Mottier
+ */
+final class ContentIndex {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = ContentIndex.class.getSimpleName();
+
+    /**
+     * Prefix of the content keys. URLs never start with it.
+     */
+    private static final String CONTENT_KEY_PREFIX = "#";
+
+    /*
+     * The following fields are guarded by the ContentIndex instance. mContents
+     * maps each content key to the first node of the chain of the variants
+     * mapped to it.
+     */
+    private final LongHashMap<Node> mNodes = new LongHashMap<Node>();
+    private final HashMap<String, Node> mContents = new HashMap<String, Node>();
+    private int mSharedCount;
+
+    /**
+     * Returns the content key of the Drawables decoded from the given digest
+     * at the given size and post-processed by the given transformations (or
+     * null).
+     */
+    static String getContentKey(String digest, int width, int height, Transformation[] transformations) {
+        return DrawableDownloader.getVariantKey(CONTENT_KEY_PREFIX + digest, width, height, transformations);
+    }
+
+    /**
+     * Returns the content key the given variant key is mapped to or null.
+     *
+     * @param fingerprint The fingerprint of the variant key (see
+     *            UrlFingerprint), computed once per request by the caller
+     */
+    synchronized String get(long fingerprint, String variantKey) {
+        final Node node = mNodes.get(fingerprint);
+        if (node == null || !node.mVariantKey.equals(variantKey)) {
+            return null;
+        }
+        return node.mContentKey;
+    }
+
+    /**
+     * Maps the given variant key (whose fingerprint is given) to the given
+     * content key. The Drawable of the content key must be in the memory
+     * cache: the mapping lasts until remove(String) is called for it.
+     */
+    synchronized void put(long fingerprint, String variantKey, String contentKey) {
+        final Node previous = mNodes.get(fingerprint);
+        if (previous != null) {
+            if (previous.mVariantKey.equals(variantKey)) {
+                if (previous.mContentKey.equals(contentKey)) {
+                    return;
+                }
+            } else if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Fingerprint collision between " + variantKey + " and " + previous.mVariantKey);
+            }
+            unchain(previous);
+        }
+
+        final Node node = new Node(fingerprint, variantKey, contentKey);
+        mNodes.put(fingerprint, node);
+        node.mNextSharing = mContents.put(contentKey, node);
+        if (node.mNextSharing != null) {
+            mSharedCount++;
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, variantKey + " shares its content with other URL(s)");
+            }
+        }
+    }
+
+    /**
+     * Forgets the variant keys mapped to the given content key. Called once
+     * its Drawable has left the memory cache.
+     */
+    synchronized void remove(String contentKey) {
+        Node node = mContents.remove(contentKey);
+        while (node != null) {
+            mNodes.remove(node.mFingerprint);
+            node = node.mNextSharing;
+        }
+    }
+
+    /**
+     * Returns the number of requested URLs whose content was already known
+     * under another URL.
+     */
+    synchronized int getSharedCount() {
+        return mSharedCount;
+    }
+
+    /**
+     * Removes the given node from the chain of its content key. Must be called
+     * with the lock held.
+     */
+    private void unchain(Node node) {
+        Node current = mContents.get(node.mContentKey);
+        Node previous = null;
+        while (current != null && current != node) {
+            previous = current;
+            current = current.mNextSharing;
+        }
+        if (current == null) {
+            return;
+        }
+        if (previous != null) {
+            previous.mNextSharing = node.mNextSharing;
+        } else if (node.mNextSharing != null) {
+            mContents.put(node.mContentKey, node.mNextSharing);
+        } else {
+            mContents.remove(node.mContentKey);
+        }
+    }
+
+    private static final class Node {
+
+        final long mFingerprint;
+        final String mVariantKey;
+        final String mContentKey;
+
+        /**
+         * The next node mapped to the same content key or null.
+         */
+        Node mNextSharing;
+
+        Node(long fingerprint, String variantKey, String contentKey) {
+            mFingerprint = fingerprint;
+            mVariantKey = variantKey;
+            mContentKey = contentKey;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * The CPU-bound stage of the download pipeline: decodes the downloaded bytes
+ * on a fixed number of threads (typically one per core). The number of
+ * decodes waiting to be executed is bounded. When the queue is full, the
+ * threads submitting new decodes (the download threads) block until a decode
+ * completes: downloading faster than the decoders can keep up with would only
+ * pile up encoded bytes in memory.
+ * <p>
+ * Asynchronous downloads completing on a transport thread can't block: they
+ * reserve capacity before the request is sent and their decode is then
+ * submitted without blocking, using the reservation.
+ *
+ * @author Cyril Mottier
+ */
+public class DecodeStage {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = DecodeStage.class.getSimpleName();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mThreadCount;
+
+    /**
+     * A permit per decode that may be running or queued. Permits are acquired
+     * when a decode is executed or reserved and released once it completes.
+     */
+    private final Semaphore mSlots;
+
+    private final UtilizationMeter mMeter = new UtilizationMeter();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mBlockedTime = new AtomicLong();
+
+    /**
+     * Creates a new stage.
+     *
+     * @param threadCount The number of threads executing the decodes
+     * @param maxQueueSize The maximum number of decodes waiting for a thread
+     */
+    public DecodeStage(int threadCount, int maxQueueSize) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be strictly positive");
+        }
+        mThreadCount = threadCount;
+        mSlots = new Semaphore(threadCount + maxQueueSize);
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    /**
+     * Executes the given decode on a thread of this stage. Blocks while the
+     * queue is full.
+     */
+    void execute(Runnable decode) throws InterruptedException {
+        reserve();
+        enqueue(decode);
+    }
+
+    /**
+     * Executes the given decode on a thread of this stage without blocking.
+     * The caller must have reserved a slot using reserve() beforehand: the
+     * decode uses it.
+     */
+    void submit(Runnable decode) {
+        enqueue(decode);
+    }
+
+    /**
+     * Blocks until the queue isn't full and reserves a slot for a decode
+     * later given to submit(Runnable). The slot must be given back using
+     * cancelReservation() if the decode is finally not submitted.
+     */
+    void reserve() throws InterruptedException {
+        if (mSlots.tryAcquire()) {
+            return;
+        }
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Decode queue is full, blocking the download thread");
+        }
+        final long start = SystemClock.uptimeMillis();
+        mSlots.acquire();
+        mBlockedCount.incrementAndGet();
+        mBlockedTime.addAndGet(SystemClock.uptimeMillis() - start);
+    }
+
+    /**
+     * Gives back a slot reserved using reserve() that won't be used.
+     */
+    void cancelReservation() {
+        mSlots.release();
+    }
+
+    private void enqueue(final Runnable decode) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final long start = SystemClock.uptimeMillis();
+                try {
+                    decode.run();
+                } finally {
+                    mMeter.onTaskCompleted(SystemClock.uptimeMillis() - start);
+                    mSlots.release();
+                }
+            }
+        });
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Returns the number of decodes waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Returns the part of the time (between 0 and 1) the threads of this stage
+     * have spent decoding since the previous call.
+     */
+    public float getUtilization() {
+        return mMeter.sample(mThreadCount);
+    }
+
+    /**
+     * Returns the number of times a download thread has been blocked because
+     * the queue was full.
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * Returns the total time (in milliseconds) download threads have been
+     * blocked because the queue was full.
+     */
+    public long getBlockedTime() {
+        return mBlockedTime.get();
+    }
+}
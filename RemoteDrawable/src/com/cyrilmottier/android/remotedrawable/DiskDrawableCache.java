@@ -0,0 +1,684 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A size-bounded LRU cache storing the encoded bytes of downloaded Drawables in
+ * a directory. The directory may be on the internal storage (
+ * Context.getCacheDir()) or on the external storage for Drawables that should
+ * survive a cache clean-up. Each entry has its own expiry date as well as the
+ * optional HTTP validators (ETag and Last-Modified) of the response it comes
+ * from. Expired entries are kept so that they can be revalidated.
+ * <p>
+ * The index of the cache is persisted in a journal file. Each operation
+ * appends a single line to the journal:
+ * <ul>
+ * <li>CLEAN &lt;name&gt; &lt;length&gt; &lt;expiry&gt; &lt;etag&gt;
+ * &lt;last-modified&gt; &lt;content&gt;: an entry has been written or its
+ * metadata has been updated. Validators are URL-encoded and replaced by '-'
+ * when missing. The content is the name of the file storing the bytes of the
+ * entry.</li>
+ * <li>READ &lt;name&gt;: an entry has been read (used to restore the LRU
+ * order). READ lines are buffered rather than written on each read.</li>
+ * <li>REMOVE &lt;name&gt;: an entry has been removed</li>
+ * </ul>
+ * The bytes are content-addressed: they are stored in a file named after
+ * their digest, shared by all the entries with the same bytes (the same image
+ * served under several URLs for instance). A content file is reference
+ * counted by its entries and only counted once in the size of the cache. It
+ * is deleted with its last entry.
+ * <p>
+ * Content files are written to a temporary file and renamed once complete
+ * before their CLEAN line is appended. As a result, a crash can never make the journal
+ * reference a partially written file. When the journal contains too many
+ * redundant lines, it is compacted into a new journal atomically replacing the
+ * previous one.
+ * <p>
+ * This class only relies on java.io and java.security (it doesn't log for
+ * that reason) and can be used, and tested, on a plain JVM.
+ *
+ * @author Cyril Mottier
+ */
+public class DiskDrawableCache {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "com.cyrilmottier.android.remotedrawable.DiskDrawableCache";
+    static final String VERSION = "3";
+
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String NO_VALUE = "-";
+
+    /**
+     * Expiry of an entry that never expires.
+     */
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    /**
+     * Minimum number of redundant lines in the journal before it is compacted.
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /**
+     * Maximum number of READ lines buffered before the journal is flushed.
+     */
+    private static final int READ_FLUSH_THRESHOLD = 64;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    private final long mMaxSize;
+
+    /*
+     * The following fields are guarded by the DiskDrawableCache instance.
+     * mEntries is an access-ordered LinkedHashMap indexed by file name: its
+     * first entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final HashMap<String, Integer> mContentRefCounts = new HashMap<String, Integer>();
+    private long mSize;
+    private Writer mJournalWriter;
+    private int mRedundantOpCount;
+    private int mBufferedReadCount;
+
+    private DiskDrawableCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if necessary.
+     *
+     * @param directory A writable directory dedicated to this cache
+     * @param maxSize The maximum number of bytes the cache may use
+     * @return The opened cache
+     * @throws IOException If the directory can't be created or read
+     */
+    public static DiskDrawableCache open(File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be strictly positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        final DiskDrawableCache cache = new DiskDrawableCache(directory, maxSize);
+        synchronized (cache) {
+            boolean needsRebuild = true;
+            if (cache.mJournalFile.exists()) {
+                try {
+                    needsRebuild = !cache.readJournal();
+                } catch (IOException e) {
+                    // The journal is corrupted. Let's rebuild it.
+                    cache.mEntries.clear();
+                    cache.mContentRefCounts.clear();
+                    cache.mSize = 0;
+                }
+            }
+
+            if (needsRebuild) {
+                cache.rebuildJournal();
+            } else {
+                cache.mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cache.mJournalFile, true), "US-ASCII"));
+            }
+            cache.deleteOrphanFiles();
+            cache.trimToSize();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns a snapshot of the entry stored for the given key or null if there
+     * is no such entry. Expired entries are returned too: it is up to the
+     * caller to check Snapshot.isExpired() and revalidate them if necessary.
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        final String name = nameOf(key);
+        final Entry entry = mEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        appendToJournal(READ + ' ' + name, false);
+        return new Snapshot(entry);
+    }
+
+    /**
+     * Stores the given bytes for the given key, replacing the previous entry if
+     * any.
+     *
+     * @param key The key of the entry (usually a URL)
+     * @param data The bytes to store
+     * @param expiry The date (in milliseconds since epoch) after which the
+     *            entry is considered as expired or NEVER_EXPIRES
+     */
+    public String put(String key, byte[] data, long expiry) throws IOException {
+        return put(key, data, expiry, null, null);
+    }
+
+    /**
+     * Stores the given bytes for the given key, replacing the previous entry if
+     * any.
+     *
+     * @param key The key of the entry (usually a URL)
+     * @param data The bytes to store
+     * @param expiry The date (in milliseconds since epoch) after which the
+     *            entry is considered as expired or NEVER_EXPIRES
+     * @param eTag The ETag of the response or null
+     * @param lastModified The Last-Modified header of the response or null
+     * @return The digest of the bytes (see Snapshot.getDigest()) or null if
+     *         they are too large to be stored
+     */
+    public String put(String key, byte[] data, long expiry, String eTag, String lastModified) throws IOException {
+        final String name = nameOf(key);
+        if (data.length > mMaxSize) {
+            remove(key);
+            return null;
+        }
+
+        final String content = digestOf(data);
+        synchronized (this) {
+            checkNotClosed();
+            if (mContentRefCounts.containsKey(content)) {
+                // The bytes are already stored for another key
+                putEntry(new Entry(name, data.length, expiry, eTag, lastModified, content));
+                trimToSize();
+                return content;
+            }
+        }
+
+        /*
+         * Writes the data to a temporary file first. The write is flushed to
+         * the disk before being committed by renaming the file.
+         */
+        final File file = new File(mDirectory, content);
+        final File tmpFile = new File(mDirectory, content + TMP_SUFFIX + Thread.currentThread().getId());
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        synchronized (this) {
+            checkNotClosed();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Unable to commit entry " + name);
+            }
+            putEntry(new Entry(name, data.length, expiry, eTag, lastModified, content));
+            trimToSize();
+        }
+        return content;
+    }
+
+    /**
+     * Updates the metadata of an existing entry without rewriting its bytes.
+     * This is typically used when a stale entry has been successfully
+     * revalidated.
+     *
+     * @return true if the entry exists and has been updated
+     */
+    public synchronized boolean update(String key, long expiry, String eTag, String lastModified) throws IOException {
+        checkNotClosed();
+        final Entry entry = mEntries.get(nameOf(key));
+        if (entry == null) {
+            return false;
+        }
+        putEntry(new Entry(entry.mName, entry.mLength, expiry, eTag, lastModified, entry.mContent));
+        return true;
+    }
+
+    /**
+     * Removes the entry for the given key if it exists.
+     *
+     * @return true if an entry has been removed
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        final Entry entry = mEntries.get(nameOf(key));
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(entry);
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes currently used by the cached entries.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Closes the cache. The cache can't be used anymore once closed.
+     */
+    public synchronized void close() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+    }
+
+    private void putEntry(Entry entry) throws IOException {
+        final Entry previous = mEntries.put(entry.mName, entry);
+        acquireContent(entry);
+        if (previous != null) {
+            releaseContent(previous, true);
+            mRedundantOpCount++;
+        }
+        appendToJournal(toJournalLine(entry));
+    }
+
+    /**
+     * Registers the given entry as a user of its content file.
+     */
+    private void acquireContent(Entry entry) {
+        final Integer count = mContentRefCounts.get(entry.mContent);
+        if (count == null) {
+            mContentRefCounts.put(entry.mContent, 1);
+            mSize += entry.mLength;
+        } else {
+            mContentRefCounts.put(entry.mContent, count + 1);
+        }
+    }
+
+    /**
+     * Unregisters the given entry from its content file. The file is deleted
+     * (if deleteFile is true) once it isn't used anymore.
+     */
+    private void releaseContent(Entry entry, boolean deleteFile) {
+        final Integer count = mContentRefCounts.get(entry.mContent);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mContentRefCounts.put(entry.mContent, count - 1);
+            return;
+        }
+        mContentRefCounts.remove(entry.mContent);
+        mSize -= entry.mLength;
+        if (deleteFile) {
+            entry.getFile().delete();
+        }
+    }
+
+    /**
+     * Reads the journal. Returns false if the journal must be rebuilt.
+     */
+    private boolean readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "US-ASCII"), 8192);
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine()) || !"".equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!readJournalLine(line)) {
+                    /*
+                     * The last line has probably been truncated by a crash. The
+                     * journal is still valid up to this line.
+                     */
+                    return false;
+                }
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean readJournalLine(String line) {
+        final String[] parts = line.split(" ");
+        try {
+            if (CLEAN.equals(parts[0]) && parts.length == 7) {
+                final Entry entry = new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), decode(parts[4]), decode(parts[5]),
+                        parts[6]);
+                final Entry previous = mEntries.put(entry.mName, entry);
+                acquireContent(entry);
+                if (previous != null) {
+                    releaseContent(previous, false);
+                }
+                return true;
+            } else if (READ.equals(parts[0]) && parts.length == 2) {
+                mEntries.get(parts[1]);
+                return true;
+            } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                final Entry entry = mEntries.remove(parts[1]);
+                if (entry != null) {
+                    releaseContent(entry, false);
+                }
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        } catch (IllegalArgumentException e) {
+            // Handled below
+        }
+        return false;
+    }
+
+    /**
+     * Writes a compacted journal containing the current entries only.
+     */
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), "US-ASCII"));
+        try {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            writer.write('\n');
+            for (Entry entry : mEntries.values()) {
+                writer.write(toJournalLine(entry));
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("Unable to commit journal");
+        }
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "US-ASCII"));
+        mRedundantOpCount = 0;
+        mBufferedReadCount = 0;
+    }
+
+    /**
+     * Deletes the files that are not referenced by the journal: temporary
+     * files and files that have been committed right before a crash.
+     */
+    private void deleteOrphanFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (!name.equals(JOURNAL_FILE) && !mContentRefCounts.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void appendToJournal(String line) throws IOException {
+        appendToJournal(line, true);
+    }
+
+    /**
+     * Appends the given line to the journal.
+     *
+     * @param flush false to leave the line in the buffer of the journal
+     *            writer. Such lines are flushed with the next flushed line or
+     *            once READ_FLUSH_THRESHOLD of them have been buffered. Only
+     *            READ lines may be buffered: losing them in a crash only
+     *            loses some LRU order.
+     */
+    private void appendToJournal(String line, boolean flush) throws IOException {
+        mJournalWriter.write(line);
+        mJournalWriter.write('\n');
+        if (flush || ++mBufferedReadCount >= READ_FLUSH_THRESHOLD) {
+            mJournalWriter.flush();
+            mBufferedReadCount = 0;
+        }
+
+        if (!line.startsWith(CLEAN)) {
+            mRedundantOpCount++;
+        }
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void removeEntry(Entry entry) throws IOException {
+        mEntries.remove(entry.mName);
+        releaseContent(entry, true);
+        appendToJournal(REMOVE + ' ' + entry.mName);
+    }
+
+    /**
+     * Evicts the least recently used entries until the size of the content
+     * files fits. Evicting an entry whose content file is shared with other
+     * entries frees nothing: such entries are only evicted, in a second pass,
+     * when evicting the others isn't enough.
+     */
+    private void trimToSize() throws IOException {
+        trimToSize(false);
+        trimToSize(true);
+        mJournalWriter.flush();
+        mBufferedReadCount = 0;
+    }
+
+    private void trimToSize(boolean evictShared) throws IOException {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Entry entry = it.next();
+            if (!evictShared && mContentRefCounts.get(entry.mContent) > 1) {
+                continue;
+            }
+            it.remove();
+            releaseContent(entry, true);
+            mJournalWriter.write(REMOVE + ' ' + entry.mName + '\n');
+            mRedundantOpCount++;
+        }
+    }
+
+    private static String toJournalLine(Entry entry) {
+        return CLEAN + ' ' + entry.mName + ' ' + entry.mLength + ' ' + entry.mExpiry + ' ' + encode(entry.mETag) + ' ' + encode(entry.mLastModified) + ' '
+                + entry.mContent;
+    }
+
+    private static String encode(String value) {
+        if (value == null) {
+            return NO_VALUE;
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String decode(String value) {
+        if (NO_VALUE.equals(value)) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (mJournalWriter == null) {
+            throw new IllegalStateException("Cache is closed");
+        }
+    }
+
+    private static byte[] readFile(File file, long length) throws IOException {
+        final byte[] data = new byte[(int) length];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                final int count = in.read(data, offset, data.length - offset);
+                if (count == -1) {
+                    throw new IOException("Truncated entry " + file.getName());
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Returns the name of the file used to store the given key. Keys are
+     * hashed as they usually are URLs that can't be used as file names.
+     */
+    static String nameOf(String key) {
+        try {
+            return digestOf(key.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the hexadecimal MD5 digest of the given bytes.
+     */
+    static String digestOf(byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            final char[] name = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                name[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+                name[i * 2 + 1] = HEX_DIGITS[digest[i] & 0x0F];
+            }
+            return new String(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A snapshot of an entry of the cache. The bytes of the entry are read on
+     * demand.
+     */
+    public static final class Snapshot {
+
+        private final File mFile;
+        private final String mDigest;
+        private final long mLength;
+        private final long mExpiry;
+        private final String mETag;
+        private final String mLastModified;
+
+        private Snapshot(Entry entry) {
+            mFile = entry.getFile();
+            mDigest = entry.mContent;
+            mLength = entry.mLength;
+            mExpiry = entry.mExpiry;
+            mETag = entry.mETag;
+            mLastModified = entry.mLastModified;
+        }
+
+        public boolean isExpired(long now) {
+            return mExpiry <= now;
+        }
+
+        public long getExpiry() {
+            return mExpiry;
+        }
+
+        public String getETag() {
+            return mETag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Returns the digest of the bytes of the entry. Entries with the same
+         * bytes have the same digest.
+         */
+        public String getDigest() {
+            return mDigest;
+        }
+
+        /**
+         * Reads the bytes of the entry. A FileNotFoundException is thrown if
+         * the entry has been removed since this snapshot has been taken.
+         */
+        public byte[] getData() throws IOException {
+            return readFile(mFile, mLength);
+        }
+    }
+
+    private final class Entry {
+
+        final String mName;
+        final long mLength;
+        final long mExpiry;
+        final String mETag;
+        final String mLastModified;
+        final String mContent;
+
+        Entry(String name, long length, long expiry, String eTag, String lastModified, String content) {
+            mName = name;
+            mLength = length;
+            mExpiry = expiry;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mContent = content;
+        }
+
+        File getFile() {
+            return new File(mDirectory, mContent);
+        }
+    }
+}
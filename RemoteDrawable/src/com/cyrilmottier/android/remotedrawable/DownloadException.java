@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.IOException;
+
+/**
+ * Signals a failed download. A retryable failure is a transient one
+ * (timeout, connection reset, server overloaded, ...) that may not happen
+ * again if the download is retried later. A permanent failure (resource not
+ * found, undecodable data, ...) will happen again.
+ *
+ * @author Cyril Mottier
+ */
+public class DownloadException extends IOException {
+
+    private static final long serialVersionUID = 5431372816524637127L;
+
+    private final boolean mRetryable;
+    private final int mResponseCode;
+
+    public DownloadException(String message, boolean retryable) {
+        this(message, retryable, -1, null);
+    }
+
+    public DownloadException(String message, boolean retryable, int responseCode) {
+        this(message, retryable, responseCode, null);
+    }
+
+    public DownloadException(String message, boolean retryable, Throwable cause) {
+        this(message, retryable, -1, cause);
+    }
+
+    private DownloadException(String message, boolean retryable, int responseCode, Throwable cause) {
+        super(message);
+        mRetryable = retryable;
+        mResponseCode = responseCode;
+        if (cause != null) {
+            // IOException(String, Throwable) isn't available on Java 5
+            initCause(cause);
+        }
+    }
+
+    /**
+     * Returns true if retrying the download may succeed.
+     */
+    public boolean isRetryable() {
+        return mRetryable;
+    }
+
+    /**
+     * Returns the HTTP response code that caused the failure or -1 if the
+     * failure isn't related to a response.
+     */
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * A scheduler executing prioritized tasks on a fixed number of threads. Tasks
+ * with the highest priority are executed first. Among tasks of the same
+ * priority, the most recently scheduled one is executed first (LIFO): when
+ * flinging through a list, the images that are currently visible are the last
+ * ones that have been requested.
+ * <p>
+ * The number of queued tasks is bounded. When the queue is full, the task with
+ * the lowest priority that has been waiting for the longest time is dropped.
+ *
+ * @author Cyril Mottier
+ */
+public class DownloadScheduler {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = DownloadScheduler.class.getSimpleName();
+
+    /**
+     * A task that can be executed by a DownloadScheduler.
+     */
+    public static abstract class Task implements Runnable, Comparable<Task> {
+
+        private volatile int mPriority;
+        private long mSequence;
+        private long mScheduleTime;
+        private long mWaitTime;
+        private DownloadScheduler mScheduler;
+
+        public Task(int priority) {
+            mPriority = priority;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Returns the time (in milliseconds) the task spent in the queue before
+         * its last execution.
+         */
+        public long getWaitTime() {
+            return mWaitTime;
+        }
+
+        public final void run() {
+            final DownloadScheduler scheduler = mScheduler;
+            if (scheduler == null) {
+                execute();
+                return;
+            }
+            scheduler.onTaskStarted(this);
+            final long start = SystemClock.uptimeMillis();
+            try {
+                execute();
+            } finally {
+                scheduler.mMeter.onTaskCompleted(SystemClock.uptimeMillis() - start);
+            }
+        }
+
+        public int compareTo(Task another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            // Most recently scheduled tasks first
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        /**
+         * Executes the task on a thread of the scheduler.
+         */
+        protected abstract void execute();
+
+        /**
+         * Called when the task has been dropped because the queue was full.
+         * The task will never be executed.
+         */
+        protected abstract void onDropped();
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int mMaxQueueSize;
+
+    /*
+     * Guards the queue modifications that must be atomic (reordering and
+     * dropping tasks). Threads taking tasks from the queue don't need it.
+     */
+    private final Object mLock = new Object();
+    private long mNextSequence;
+
+    private final AtomicLong mStartedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitTime = new AtomicLong();
+    private volatile long mMaxWaitTime;
+    private final UtilizationMeter mMeter = new UtilizationMeter();
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param threadCount The number of threads executing the tasks
+     * @param maxQueueSize The maximum number of tasks waiting to be executed
+     */
+    public DownloadScheduler(int threadCount, int maxQueueSize) {
+        mMaxQueueSize = maxQueueSize;
+        mQueue = new PriorityBlockingQueue<Runnable>();
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, mQueue);
+    }
+
+    /**
+     * Schedules the given task. The task is not allowed to be scheduled again
+     * until it has been executed.
+     */
+    public void schedule(Task task) {
+        Task dropped = null;
+        synchronized (mLock) {
+            task.mScheduler = this;
+            task.mSequence = mNextSequence++;
+            task.mScheduleTime = SystemClock.uptimeMillis();
+            mExecutor.execute(task);
+            if (mQueue.size() > mMaxQueueSize) {
+                dropped = removeLowestTask();
+            }
+        }
+
+        if (dropped != null) {
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Queue is full, dropping task with priority " + dropped.mPriority);
+            }
+            mDroppedCount.incrementAndGet();
+            dropped.onDropped();
+        }
+    }
+
+    /**
+     * Changes the priority of the given task. If the task is still queued, it
+     * is moved according to its new priority and considered as the most
+     * recently scheduled task of that priority.
+     */
+    public void setPriority(Task task, int priority) {
+        synchronized (mLock) {
+            if (task.mPriority == priority) {
+                return;
+            }
+            if (mQueue.remove(task)) {
+                task.mPriority = priority;
+                task.mSequence = mNextSequence++;
+                mQueue.add(task);
+            } else {
+                task.mPriority = priority;
+            }
+        }
+    }
+
+    /**
+     * Removes the given task from the queue.
+     *
+     * @return true if the task was queued and won't be executed
+     */
+    public boolean remove(Task task) {
+        synchronized (mLock) {
+            return mQueue.remove(task);
+        }
+    }
+
+    /**
+     * Changes the number of threads executing the tasks. When the number
+     * decreases, the running tasks complete normally and the excess threads
+     * terminate once idle.
+     */
+    public void setThreadCount(int threadCount) {
+        synchronized (mExecutor) {
+            if (threadCount > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(threadCount);
+                mExecutor.setCorePoolSize(threadCount);
+            } else {
+                mExecutor.setCorePoolSize(threadCount);
+                mExecutor.setMaximumPoolSize(threadCount);
+            }
+        }
+    }
+
+    public int getThreadCount() {
+        return mExecutor.getCorePoolSize();
+    }
+
+    /**
+     * Stops the threads of this scheduler once the queued tasks have been
+     * executed. No task can be scheduled afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed.
+     */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the number of tasks that have been dropped since this scheduler
+     * has been created.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Returns the average time (in milliseconds) tasks have spent in the queue
+     * before being executed.
+     */
+    public long getAverageWaitTime() {
+        final long started = mStartedCount.get();
+        return (started == 0) ? 0 : mTotalWaitTime.get() / started;
+    }
+
+    /**
+     * Returns the maximum time (in milliseconds) a task has spent in the queue
+     * before being executed.
+     */
+    public long getMaxWaitTime() {
+        return mMaxWaitTime;
+    }
+
+    /**
+     * Returns the part of the time (between 0 and 1) the threads of this
+     * scheduler have spent executing tasks since the previous call.
+     */
+    public float getUtilization() {
+        return mMeter.sample(getThreadCount());
+    }
+
+    private void onTaskStarted(Task task) {
+        final long waitTime = SystemClock.uptimeMillis() - task.mScheduleTime;
+        task.mWaitTime = waitTime;
+        mStartedCount.incrementAndGet();
+        mTotalWaitTime.addAndGet(waitTime);
+        if (waitTime > mMaxWaitTime) {
+            mMaxWaitTime = waitTime;
+        }
+    }
+
+    /**
+     * Removes the queued task that would be executed last. Must be called
+     * with mLock held.
+     */
+    private Task removeLowestTask() {
+        Task lowest = null;
+        final Iterator<Runnable> it = mQueue.iterator();
+        while (it.hasNext()) {
+            final Task task = (Task) it.next();
+            if (lowest == null || task.mPriority < lowest.mPriority
+                    || (task.mPriority == lowest.mPriority && task.mSequence < lowest.mSequence)) {
+                lowest = task;
+            }
+        }
+        return (lowest != null && mQueue.remove(lowest)) ? lowest : null;
+    }
+}
@@ -16,13 +16,23 @@
 
 package com.cyrilmottier.android.remotedrawable;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
 
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.cyrilmottier.android.remotedrawable.util.Config;
@@ -30,15 +40,88 @@ import com.cyrilmottier.android.remotedrawable.util.Config;
 /**
  * The DrawableDownloader takes care of downloading Drawable according to a
  * given URL. It includes a cache that prevent downloading previously downloaded
- * Drawables.
+ * Drawables. Concurrent requests for the same URL are coalesced: only the first
+ * one triggers a download and all callbacks are notified once the Drawable is
+ * ready.
+ * <p>
+ * An optional DiskDrawableCache may be set to keep the downloaded bytes across
+ * process restarts. It is checked before going to the network. Cached entries
+ * expire according to the HTTP caching headers of the responses they come from.
+ * Expired entries are revalidated with a conditional request: when the server
+ * answers "304 Not Modified", the cached Drawable (or the cached bytes) are
+ * reused.
+ * <p>
+ * Drawables may be requested at a target size. The image is then decoded at
+ * that size rather than at its full resolution and the memory cache stores one
+ * variant per URL and target size. The disk cache always stores the original
+ * bytes.
+ * <p>
+ * Transformations (resizing, cropping, rounded corners, ...) may be applied to
+ * the decoded Bitmap. They run on the decode threads and their result is
+ * cached as a variant of its own: the chain of transformations is part of the
+ * variant key.
+ * <p>
+ * Downloads are executed by a DownloadScheduler according to their priority:
+ * visible Drawables first, prefetched ones last. Within a priority, the most
+ * recently requested Drawable is downloaded first. The downloaded bytes are
+ * handed to a DecodeStage which decodes them on one thread per core. Its
+ * queue is bounded: the download threads wait when the decoders fall behind.
+ * <p>
+ * Cached Drawables are content-addressed: the same image served under several
+ * URLs (CDN variants, tracking parameters, ...) is stored once on disk and
+ * decoded once in memory. A UrlNormalizer may also be set so that obviously
+ * equivalent URLs are only downloaded once.
+ * <p>
+ * Bitmaps evicted from the memory cache enter a BitmapPool once no
+ * RemoteDrawable displays them anymore. Pooled Bitmaps are reused when scaling
+ * the decoded images down to their target size. To that end, every Drawable
+ * handed to a client (returned by getDrawable() or delivered to
+ * Callback.onDrawableLoaded()) has been retained on behalf of that client which
+ * has to release it (see release(Drawable)) once it doesn't draw it anymore.
+ * <p>
+ * The bytes are fetched by a pluggable Transport with connect and read
+ * timeouts: a blocking HttpTransport by default. An asynchronous transport
+ * (such as NioTransport) runs many downloads on its own threads: the download
+ * threads then only dispatch the requests. Downloads failing for a transient
+ * reason are retried after an exponential backoff delay. The number of
+ * concurrent downloads is adjusted by a ConcurrencyLimiter from the measured
+ * latency of the requests.
+ * <p>
+ * URLs may be prefetched at the lowest priority into the disk or memory tier
+ * without binding a RemoteDrawable.
+ * <p>
+ * A MetricsListener may be set to measure the time each request spends in
+ * every stage of the pipeline. No measurement is made when it isn't set.
+ * <p>
+ * When progressive loading is enabled, coarse previews are decoded from the
+ * partially downloaded bytes and delivered before the final Drawable.
  * 
  * @author Cyril Mottier
  */
 public class DrawableDownloader {
 
-    static interface Callback {
+    /**
+     * Interface definition of the callbacks notified when a download
+     * completes. Callbacks are always invoked on the main thread.
+     */
+    public static interface Callback {
+
+        /**
+         * Called when the Drawable is ready. The Drawable has been retained on
+         * behalf of the callback: it must be released (see
+         * release(Drawable)) once it isn't displayed anymore so that its
+         * Bitmap can be reused.
+         */
         void onDrawableLoaded(String urlString, Drawable drawable);
 
+        /**
+         * Called when a coarse preview of the Drawable is available. Previews
+         * are only delivered when progressive loading is enabled. The quality
+         * of successive previews of a Drawable is strictly increasing and
+         * always lower than QUALITY_FULL.
+         */
+        void onDrawablePreviewLoaded(String urlString, Drawable preview, int quality);
+
         void onDrawableLoadingFailed(String urlString);
     }
 
@@ -46,16 +129,190 @@ public class DrawableDownloader {
     private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
     private static final String LOG_TAG = DrawableDownloader.class.getSimpleName();
 
+    /**
+     * The priority of Drawables that are currently displayed.
+     */
+    public static final int PRIORITY_VISIBLE = 2;
+
+    /**
+     * The priority of Drawables that are not displayed yet but will probably
+     * be soon.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * The priority of Drawables that are downloaded in advance.
+     */
+    public static final int PRIORITY_PREFETCH = 0;
+
+    /**
+     * The cache tiers a prefetch can target.
+     */
+    public static enum Tier {
+        /**
+         * Only the encoded bytes are downloaded and stored in the disk cache.
+         * Nothing is decoded.
+         */
+        DISK,
+
+        /**
+         * The Drawables are also decoded (at the size and with the
+         * transformations given to the prefetch) and stored in the memory
+         * cache.
+         */
+        MEMORY
+    }
+
     private static final int POOL_THREAD_NUMBER = 3;
+    private static final int MIN_POOL_THREAD_NUMBER = 1;
+    private static final int MAX_POOL_THREAD_NUMBER = 8;
+
+    /**
+     * Maximum number of concurrent downloads. Only asynchronous transports can
+     * exceed MAX_POOL_THREAD_NUMBER downloads as blocking ones need a thread
+     * per download.
+     */
+    private static final int MAX_CONCURRENT_DOWNLOADS = 32;
+
+    /**
+     * Maximum number of downloads waiting for a thread. Once reached, the
+     * oldest download with the lowest priority is dropped.
+     */
+    private static final int MAX_QUEUED_DOWNLOADS = 64;
+
+    /**
+     * Maximum number of downloaded Drawables waiting to be decoded. Download
+     * threads block once it is reached.
+     */
+    private static final int MAX_QUEUED_DECODES = 8;
+
+    /**
+     * Maximum number of downloads of a prefetch queued at the same time. The
+     * URLs of a prefetch are fed to the scheduler in batches so that a large
+     * prefetch doesn't fill (and overflow) the queue.
+     */
+    private static final int PREFETCH_BATCH_SIZE = 4;
+
+    /**
+     * Maximum number of failing URLs remembered by the failure cache.
+     */
+    private static final int MAX_FAILED_URLS = 256;
+
+    /**
+     * Part of the maximum heap size the memory cache is allowed to use.
+     */
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 8;
+
+    /**
+     * Part of the maximum heap size the Bitmap pool is allowed to use.
+     */
+    private static final int BITMAP_POOL_HEAP_FRACTION = 32;
+
+    /**
+     * Lifetime of the cached entries when the HTTP response doesn't contain
+     * any freshness information.
+     */
+    private static final long DEFAULT_ENTRY_LIFETIME = 3 * 24 * 60 * 60 * 1000L;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The quality of a fully decoded Drawable.
+     */
+    public static final int QUALITY_FULL = Integer.MAX_VALUE;
+
+    /**
+     * Parts of the response that must have been received to decode the
+     * successive previews of a Drawable when progressive loading is enabled.
+     */
+    private static final float[] PREVIEW_THRESHOLDS = {
+            0.15f, 0.5f
+    };
+
+    /**
+     * Additional subsampling applied to each preview. Previews are drawn
+     * stretched, so there is no need to decode them at the target size.
+     */
+    private static final int[] PREVIEW_SUBSAMPLING = {
+            4, 2
+    };
+
+    /**
+     * Returned by fetch() when the response is fetched asynchronously. The
+     * executing thread learns it from the returned value rather than from a
+     * field of the task: the task may already be executed again by another
+     * thread once the request has been sent.
+     */
+    private static final Drawable FETCH_PENDING = new ColorDrawable(0);
+
     private static DrawableDownloader sInstance;
 
-    private final ExecutorService mPool;
-    private final BasicDrawableCache mCache;
+    private final DownloadScheduler mScheduler;
+    private final DecodeStage mDecodeStage;
+    private final LruDrawableCache mCache;
+    private final BitmapPool mBitmapPool;
+    private volatile Transport mTransport = new HttpTransport();
+    private final ConcurrencyLimiter mLimiter;
+    private final FailureCache mFailureCache = new FailureCache(MAX_FAILED_URLS);
+    private final ContentIndex mContentIndex;
     private final Handler mHandler = new Handler();
 
+    /**
+     * Delivers the results to the callbacks in batches, once per frame.
+     */
+    private final FrameDispatcher mDispatcher = new FrameDispatcher(mHandler);
+    private volatile DiskDrawableCache mDiskCache;
+    private volatile boolean mProgressiveLoadingEnabled;
+    private volatile MetricsListener mMetricsListener;
+    private volatile UrlNormalizer mUrlNormalizer;
+
+    /**
+     * Pending or running downloads, indexed by the fingerprint of their
+     * variant key (see getVariantKey(String, int, int)). This map is only
+     * accessed from the main thread (in getDrawable and in the Runnables
+     * posted to mHandler or mDispatcher) and therefore doesn't need to be
+     * synchronized.
+     */
+    private final LongHashMap<DownloadTask> mPendingTasks;
+
+    /**
+     * Receives the references on the callbacks that have been garbage
+     * collected. Only polled from the main thread.
+     */
+    private final ReferenceQueue<Callback> mCollectedCallbacks = new ReferenceQueue<Callback>();
+
+    /**
+     * Retains the Drawables found in the memory cache before they may be
+     * evicted.
+     */
+    private final LruDrawableCache.Retainer mRetainer = new LruDrawableCache.Retainer() {
+        public void retain(Drawable drawable) {
+            DrawableDownloader.this.retain(drawable);
+        }
+    };
+
     private DrawableDownloader() {
-        mPool = Executors.newFixedThreadPool(POOL_THREAD_NUMBER);
-        mCache = new BasicDrawableCache();
+        mScheduler = new DownloadScheduler(POOL_THREAD_NUMBER, MAX_QUEUED_DOWNLOADS);
+        mDecodeStage = new DecodeStage(Runtime.getRuntime().availableProcessors(), MAX_QUEUED_DECODES);
+        mCache = new LruDrawableCache((int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION));
+        mBitmapPool = new BitmapPool((int) (Runtime.getRuntime().maxMemory() / BITMAP_POOL_HEAP_FRACTION));
+        mCache.setOnEvictionListener(new LruDrawableCache.OnEvictionListener() {
+            public void onDrawableEvicted(String key, Drawable drawable) {
+                // The listener is also notified when an entry is replaced
+                if (mCache.peek(key) == null) {
+                    mContentIndex.remove(key);
+                }
+                release(drawable);
+            }
+        });
+        mLimiter = new ConcurrencyLimiter(POOL_THREAD_NUMBER, MIN_POOL_THREAD_NUMBER, MAX_CONCURRENT_DOWNLOADS);
+        mLimiter.setOnLimitChangedListener(new ConcurrencyLimiter.OnLimitChangedListener() {
+            public void onLimitChanged(int oldLimit, int newLimit, String reason) {
+                mScheduler.setThreadCount(Math.min(newLimit, MAX_POOL_THREAD_NUMBER));
+            }
+        });
+        mContentIndex = new ContentIndex();
+        mPendingTasks = new LongHashMap<DownloadTask>(MAX_QUEUED_DOWNLOADS);
     }
 
     public static DrawableDownloader getInstance() {
@@ -65,66 +322,1474 @@ public class DrawableDownloader {
         return sInstance;
     }
 
-    public Drawable getDrawable(final String urlString, final Callback callback) {
-        final Drawable d = mCache.get(urlString);
+    /**
+     * Returns the scheduler executing the downloads. It may be used to read
+     * the queue statistics.
+     */
+    public DownloadScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Returns the stage decoding the downloaded Drawables. It may be used to
+     * read its utilization and how often it slows the downloads down.
+     */
+    public DecodeStage getDecodeStage() {
+        return mDecodeStage;
+    }
+
+    /**
+     * Returns the memory cache used by this DrawableDownloader. It may be used
+     * to read the cache statistics.
+     */
+    public LruDrawableCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Returns the pool of Bitmaps fed by the memory cache evictions and used
+     * when decoding Drawables. It may be used to read the reuse statistics.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Sets the transport fetching the bytes of the Drawables. It must be set
+     * before any Drawable is requested.
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport must not be null");
+        }
+        mTransport = transport;
+    }
+
+    /**
+     * Returns the transport fetching the bytes of the Drawables. It may be
+     * used to configure the timeouts and the retry policy.
+     */
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Returns the limiter adjusting the number of concurrent downloads. It may
+     * be used to read the current limit and the reason of its last change.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return mLimiter;
+    }
+
+    /**
+     * Sets the normalizer applied to the requested URLs. Equivalent URLs
+     * normalized to the same URL are only downloaded once. The callbacks are
+     * notified with the normalized URL. Passing null disables normalization.
+     * The normalizer must be set before any Drawable is requested.
+     */
+    public void setUrlNormalizer(UrlNormalizer normalizer) {
+        mUrlNormalizer = normalizer;
+    }
+
+    public UrlNormalizer getUrlNormalizer() {
+        return mUrlNormalizer;
+    }
+
+    /**
+     * Returns the number of downloaded URLs whose bytes were identical to the
+     * bytes of another URL and which therefore haven't been decoded again.
+     */
+    public int getSharedContentCount() {
+        return mContentIndex.getSharedCount();
+    }
+
+    /**
+     * Returns the cache of the URLs whose download recently failed. Requests
+     * for a URL in backoff fail immediately. It may be used to change the
+     * backoff durations or to forget the failures (when the network becomes
+     * available again for instance).
+     */
+    public FailureCache getFailureCache() {
+        return mFailureCache;
+    }
+
+    /**
+     * Sets the listener to notify each time a request completes. Passing null
+     * disables the instrumentation: no measurement is made at all in that
+     * case. Only the requests made after this call are reported.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Sets the disk cache used to store the downloaded bytes. Passing null
+     * disables the disk cache.
+     */
+    public void setDiskCache(DiskDrawableCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    public DiskDrawableCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    /**
+     * Enables or disables progressive loading. When enabled, coarse previews
+     * are decoded while the bytes of a Drawable are being downloaded and
+     * delivered to the callbacks before the final Drawable. Progressive loading
+     * requires the server to send the Content-Length of the responses.
+     */
+    public void setProgressiveLoadingEnabled(boolean enabled) {
+        mProgressiveLoadingEnabled = enabled;
+    }
+
+    public boolean isProgressiveLoadingEnabled() {
+        return mProgressiveLoadingEnabled;
+    }
+
+    /**
+     * Returns the full-size Drawable at the given URL if it is already
+     * available. Otherwise, null is returned and the given callback will be
+     * notified once the Drawable has been downloaded. This method must be
+     * called from the main thread.
+     * 
+     * @param urlString The URL of the Drawable
+     * @param callback The callback to notify when the Drawable is ready
+     * @return The Drawable if available, null otherwise
+     */
+    public Drawable getDrawable(String urlString, Callback callback) {
+        return getDrawable(urlString, 0, 0, callback);
+    }
+
+    /**
+     * Returns the Drawable at the given URL decoded for the given size if it is
+     * already available. Otherwise, null is returned and the given callback
+     * will be notified once the Drawable has been downloaded. This method must
+     * be called from the main thread.
+     * 
+     * @param urlString The URL of the Drawable
+     * @param width The width at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param height The height at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param callback The callback to notify when the Drawable is ready
+     * @return The Drawable if available, null otherwise
+     */
+    public Drawable getDrawable(String urlString, int width, int height, Callback callback) {
+        return getDrawable(urlString, width, height, PRIORITY_VISIBLE, callback);
+    }
+
+    /**
+     * Returns the Drawable at the given URL decoded for the given size if it is
+     * already available. Otherwise, null is returned and the given callback
+     * will be notified once the Drawable has been downloaded. This method must
+     * be called from the main thread.
+     * <p>
+     * The callback is weakly referenced: it won't be notified once it has been
+     * garbage collected. A download nobody waits for anymore is cancelled
+     * (see cancel(String, int, int, Callback)).
+     * 
+     * @param urlString The URL of the Drawable
+     * @param width The width at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param height The height at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param priority The priority of the download (one of PRIORITY_VISIBLE,
+     *            PRIORITY_NORMAL or PRIORITY_PREFETCH)
+     * @param callback The callback to notify when the Drawable is ready
+     * @return The Drawable if available, null otherwise
+     */
+    public Drawable getDrawable(String urlString, int width, int height, int priority, Callback callback) {
+        return getDrawable(urlString, width, height, priority, null, callback);
+    }
+
+    /**
+     * Returns the Drawable at the given URL decoded for the given size and
+     * post-processed by the given transformations if it is already available.
+     * Otherwise, null is returned and the given callback will be notified once
+     * the Drawable has been downloaded. This method must be called from the
+     * main thread.
+     * <p>
+     * The transformations are applied in order on the decode threads. The
+     * transformed Drawable is cached under a key including the keys of the
+     * transformations.
+     * 
+     * @param urlString The URL of the Drawable
+     * @param width The width at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param height The height at which the Drawable will be displayed or 0 if
+     *            unknown
+     * @param priority The priority of the download (one of PRIORITY_VISIBLE,
+     *            PRIORITY_NORMAL or PRIORITY_PREFETCH)
+     * @param transformations The transformations to apply or null
+     * @param callback The callback to notify when the Drawable is ready
+     * @return The Drawable if available, null otherwise. The returned
+     *         Drawable has been retained on behalf of the caller which must
+     *         release it (see release(Drawable)).
+     */
+    public Drawable getDrawable(String urlString, int width, int height, int priority, Transformation[] transformations, Callback callback) {
+        purgeCollectedCallbacks();
+
+        if (transformations != null && transformations.length == 0) {
+            transformations = null;
+        }
+        urlString = normalize(urlString);
+        final String key = getVariantKey(urlString, width, height, transformations);
+        // Computed once and carried by the task: every lookup below uses it
+        final long fingerprint = UrlFingerprint.of(key);
+        final String contentKey = mContentIndex.get(fingerprint, key);
+        // Retained before it may be evicted and reused: the caller gets it
+        // even if it leaves the cache concurrently
+        final Drawable d = (contentKey != null) ? mCache.get(contentKey, mRetainer) : null;
         if (d != null) {
-            return d;
+            final MetricsListener listener = mMetricsListener;
+            if (listener != null) {
+                final RequestMetrics metrics = new RequestMetrics(urlString);
+                metrics.mTier = RequestMetrics.TIER_MEMORY;
+                listener.onRequestCompleted(metrics);
+            }
+            return newInstance(d);
         }
 
-        // TODO cyril: The following code has been written for a demo purpose
-        // only. It doesn't work properly when device orientation is changing
-        // for instance. Here, we should first be sure, the urlString is not a
-        // pending or running task to prevent downloading useless drawables.
-        // Unfortunatly, doing so implies using or own thread pool (in which
-        // each queued task is known) - which is not the purpose of this
-        // demonstration.
+        DownloadTask task = getPendingTask(fingerprint, key);
+        if (task != null) {
+            /*
+             * A download is already pending or running for the given URL.
+             * Simply wait for it to complete.
+             */
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Joining pending download at " + urlString);
+            }
+            task.addCallback(callback);
+            // The task may be a prefetch that doesn't decode
+            task.mDecode = true;
+            if (priority > task.getPriority()) {
+                mScheduler.setPriority(task, priority);
+            }
+            return null;
+        }
 
-        // TODO cyril: Nothing is done to handle timeouts or network
-        // connectivity problem ... Is the "catch" bloc a sufficient code for
-        // that?
+        if (mFailureCache.isBackingOff(urlString)) {
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Failing fast on backed off URL " + urlString);
+            }
+            failFast(urlString, callback);
+            return null;
+        }
 
-        mPool.execute(new Runnable() {
+        task = new DownloadTask(urlString, width, height, transformations, key, fingerprint, priority);
+        task.addCallback(callback);
+        addPendingTask(task);
+        mScheduler.schedule(task);
 
+        // Here null is returned to indicate the Drawable is not ready
+        return null;
+    }
+
+    /**
+     * Notifies the given callback of the failure of a request that hasn't
+     * been executed. The callback is notified asynchronously, as it would be
+     * for a failed download.
+     */
+    private void failFast(final String urlString, final Callback callback) {
+        final MetricsListener listener = mMetricsListener;
+        mDispatcher.post(new Runnable() {
             public void run() {
+                callback.onDrawableLoadingFailed(urlString);
+                if (listener != null) {
+                    final RequestMetrics metrics = new RequestMetrics(urlString);
+                    metrics.mTier = RequestMetrics.TIER_NONE;
+                    listener.onRequestCompleted(metrics);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unregisters the given callback from the download of the Drawable at the
+     * given URL. The download is cancelled if no callback is waiting for it
+     * anymore. This method must be called from the main thread.
+     *
+     * @param urlString The URL of the Drawable
+     * @param width The width given when requesting the Drawable
+     * @param height The height given when requesting the Drawable
+     * @param callback The callback given when requesting the Drawable
+     */
+    public void cancel(String urlString, int width, int height, Callback callback) {
+        cancel(urlString, width, height, null, callback);
+    }
+
+    /**
+     * Same as cancel(String, int, int, Callback) for a Drawable requested with
+     * transformations.
+     *
+     * @param transformations The transformations given when requesting the
+     *            Drawable or null
+     */
+    public void cancel(String urlString, int width, int height, Transformation[] transformations, Callback callback) {
+        final String key = getVariantKey(normalize(urlString), width, height, transformations);
+        final DownloadTask task = getPendingTask(UrlFingerprint.of(key), key);
+        if (task != null && task.removeCallback(callback) && task.mCallbacks.isEmpty()) {
+            cancelTask(task);
+        }
+        purgeCollectedCallbacks();
+    }
+
+    /**
+     * Removes the callbacks that have been garbage collected (typically the
+     * RemoteDrawables of a destroyed Activity) and cancels the downloads
+     * nobody waits for anymore. Called on each request and each completed
+     * download so that abandoned downloads are cancelled even when no new
+     * Drawable is requested. Must be called from the main thread.
+     */
+    private void purgeCollectedCallbacks() {
+        Reference<? extends Callback> reference;
+        while ((reference = mCollectedCallbacks.poll()) != null) {
+            final DownloadTask task = ((CallbackReference) reference).mTask;
+            if (task.mCallbacks.remove(reference) && task.mCallbacks.isEmpty()) {
+                cancelTask(task);
+            }
+        }
+    }
+
+    /**
+     * Cancels a download nobody waits for anymore. A queued download is
+     * dequeued. A running one is aborted unless its bytes have already been
+     * downloaded: the Drawable then still goes to the caches. Prefetches are
+     * only cancelled through their handle. Must be called from the main
+     * thread.
+     */
+    private void cancelTask(DownloadTask task) {
+        if (task.mPrefetch != null) {
+            return;
+        }
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Cancelling abandoned download at " + task.mUrl);
+        }
+        task.mCancelled = true;
+        removePendingTask(task);
+        if (!mScheduler.remove(task)) {
+            // The task is running: abort its pending request (if any)
+            final Transport.Response response = task.mResponse;
+            if (response != null) {
+                response.abort();
+            }
+        }
+    }
+
+    /**
+     * Downloads the given URLs in advance, at the lowest priority, so that
+     * their Drawables are later loaded from a local tier rather than from the
+     * network. Drawables that are already available in the target tier are
+     * skipped. Prefetching to the disk tier requires a disk cache. This method
+     * must be called from the main thread.
+     *
+     * @param urls The URLs of the Drawables to prefetch
+     * @param target The tier in which the Drawables must be available
+     * @return A handle that may be used to cancel the prefetch
+     */
+    public PrefetchHandle prefetch(Collection<String> urls, Tier target) {
+        return prefetch(urls, 0, 0, null, target);
+    }
+
+    /**
+     * Same as prefetch(Collection, Tier) for Drawables that will be requested
+     * at the given size and with the given transformations. When prefetching
+     * to the memory tier, this is the variant that is decoded and cached: it
+     * must match the one later given to getDrawable() to be a hit.
+     *
+     * @param width The width the Drawables will be requested at (0 if
+     *            unknown)
+     * @param height The height the Drawables will be requested at (0 if
+     *            unknown)
+     * @param transformations The transformations the Drawables will be
+     *            requested with or null
+     */
+    public PrefetchHandle prefetch(Collection<String> urls, int width, int height, Transformation[] transformations, Tier target) {
+        if (transformations != null && transformations.length == 0) {
+            transformations = null;
+        }
+        final PrefetchHandle handle = new PrefetchHandle(this, urls, width, height, transformations, target);
+        if (target == Tier.DISK && mDiskCache == null) {
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "No disk cache to prefetch to");
+            }
+            handle.cancel();
+            return handle;
+        }
+        schedulePrefetches(handle);
+        return handle;
+    }
+
+    /**
+     * Schedules the next URLs of the given prefetch. Must be called from the
+     * main thread.
+     */
+    private void schedulePrefetches(PrefetchHandle handle) {
+        while (!handle.isCancelled() && handle.mRunningCount < PREFETCH_BATCH_SIZE && !handle.mRemaining.isEmpty()) {
+            final String urlString = normalize(handle.mRemaining.removeFirst());
+            final String key = getVariantKey(urlString, handle.mWidth, handle.mHeight, handle.mTransformations);
+            final long fingerprint = UrlFingerprint.of(key);
+            if (getPendingTask(fingerprint, key) != null || (handle.mTier == Tier.MEMORY && peekCached(fingerprint, key) != null)) {
+                // Already available or being downloaded
+                handle.onCompleted(true);
+                continue;
+            }
+            if (mFailureCache.isBackingOff(urlString)) {
+                handle.onCompleted(false);
+                continue;
+            }
+
+            final DownloadTask task = new DownloadTask(urlString, handle.mWidth, handle.mHeight, handle.mTransformations, key, fingerprint,
+                    PRIORITY_PREFETCH);
+            task.mDecode = handle.mTier == Tier.MEMORY;
+            task.mPrefetch = handle;
+            handle.mRunningCount++;
+            addPendingTask(task);
+            mScheduler.schedule(task);
+        }
+    }
+
+    /**
+     * Cancels the queued downloads of the given prefetch. Downloads that have
+     * been joined by a client are kept. Must be called from the main thread.
+     */
+    void cancelPrefetch(PrefetchHandle handle) {
+        handle.mRemaining.clear();
+        final ArrayList<DownloadTask> tasks = mPendingTasks.values();
+        final int count = tasks.size();
+        for (int i = 0; i < count; i++) {
+            final DownloadTask task = tasks.get(i);
+            if (task.mPrefetch == handle && task.mCallbacks.isEmpty() && mScheduler.remove(task)) {
+                mPendingTasks.remove(task.mFingerprint);
+                handle.mRunningCount--;
+            }
+        }
+    }
+
+    /**
+     * Notifies the prefetch (if any) the given task belongs to that the task
+     * is over. Must be called from the main thread.
+     */
+    private void onPrefetchCompleted(DownloadTask task, boolean success) {
+        final PrefetchHandle handle = task.mPrefetch;
+        if (handle != null) {
+            task.mPrefetch = null;
+            handle.mRunningCount--;
+            handle.onCompleted(success);
+            schedulePrefetches(handle);
+        }
+    }
+
+    /**
+     * Removes the given task from the pending tasks. Another task may have
+     * replaced it if it had been cancelled. Must be called from the main
+     * thread.
+     */
+    private void removePendingTask(DownloadTask task) {
+        if (mPendingTasks.get(task.mFingerprint) == task) {
+            mPendingTasks.remove(task.mFingerprint);
+        }
+    }
+
+    /**
+     * Returns the pending task of the given variant (identified by its key and
+     * the fingerprint of its key) or null. Must be called from the main
+     * thread.
+     */
+    private DownloadTask getPendingTask(long fingerprint, String key) {
+        final DownloadTask task = mPendingTasks.get(fingerprint);
+        return (task != null && task.mKey.equals(key)) ? task : null;
+    }
+
+    /**
+     * Registers the given task as pending. In the unlikely event that another
+     * variant with the same fingerprint is pending, the task isn't registered:
+     * it is executed but can't be joined. Must be called from the main
+     * thread.
+     */
+    private void addPendingTask(DownloadTask task) {
+        if (!mPendingTasks.containsKey(task.mFingerprint)) {
+            mPendingTasks.put(task.mFingerprint, task);
+        }
+    }
+
+    /**
+     * Changes the priority of a pending download. This method must be called
+     * from the main thread.
+     * 
+     * @param urlString The URL of the Drawable
+     * @param width The width given when requesting the Drawable
+     * @param height The height given when requesting the Drawable
+     * @param priority The new priority of the download
+     */
+    public void setPriority(String urlString, int width, int height, int priority) {
+        setPriority(urlString, width, height, null, priority);
+    }
+
+    /**
+     * Same as setPriority(String, int, int, int) for a Drawable requested with
+     * transformations.
+     *
+     * @param transformations The transformations given when requesting the
+     *            Drawable or null
+     */
+    public void setPriority(String urlString, int width, int height, Transformation[] transformations, int priority) {
+        final String key = getVariantKey(normalize(urlString), width, height, transformations);
+        final DownloadTask task = getPendingTask(UrlFingerprint.of(key), key);
+        if (task != null) {
+            mScheduler.setPriority(task, priority);
+        }
+    }
+
+    private String normalize(String urlString) {
+        final UrlNormalizer normalizer = mUrlNormalizer;
+        return (normalizer != null) ? normalizer.normalize(urlString) : urlString;
+    }
+
+    /**
+     * Returns the cached Drawable of the given variant (even if it has
+     * expired) or null.
+     */
+    private Drawable peekCached(long fingerprint, String key) {
+        final String contentKey = mContentIndex.get(fingerprint, key);
+        return (contentKey != null) ? mCache.peek(contentKey) : null;
+    }
+
+    /**
+     * Returns the key identifying the variant of the Drawable at the given URL
+     * decoded for the given size. A space is used as a separator as it can't
+     * be part of a valid URL.
+     */
+    static String getVariantKey(String urlString, int width, int height) {
+        if (width <= 0 && height <= 0) {
+            return urlString;
+        }
+        return urlString + ' ' + width + 'x' + height;
+    }
+
+    /**
+     * Returns the key identifying the variant of the Drawable at the given URL
+     * decoded for the given size and post-processed by the given
+     * transformations. The keys of the transformations are appended in order.
+     */
+    static String getVariantKey(String urlString, int width, int height, Transformation[] transformations) {
+        final String key = getVariantKey(urlString, width, height);
+        if (transformations == null || transformations.length == 0) {
+            return key;
+        }
+        final StringBuilder sb = new StringBuilder(key).append(' ');
+        for (int i = 0; i < transformations.length; i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append(transformations[i].getKey());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fetches the Drawable at the given URL. This method is executed by the
+     * download threads. A fresh disk cache entry is used as is. A stale one is
+     * revalidated using a conditional request. The fetched bytes are attached
+     * to the task (see DownloadTask.setData()) and null is returned: they must
+     * be decoded by the decode stage. A Drawable is only returned when it is
+     * available without decoding. It has then been retained and must be
+     * released once delivered.
+     * <p>
+     * If the transport fetches the URL asynchronously, FETCH_PENDING is
+     * returned right after the request has been sent.
+     */
+    private Drawable fetch(DownloadTask task) throws IOException, InterruptedException {
+        final String urlString = task.mUrl;
+        final long now = System.currentTimeMillis();
+        final DiskDrawableCache diskCache = mDiskCache;
+
+        if (!task.mDecode && diskCache == null) {
+            // Nowhere to store the bytes of a prefetch
+            return null;
+        }
+
+        final DiskDrawableCache.Snapshot snapshot = task.mSkipDiskCache ? null : readFromDiskCache(diskCache, urlString);
+        if (snapshot != null && !snapshot.isExpired(now)) {
+            if (!task.mDecode) {
+                setTier(task, RequestMetrics.TIER_DISK);
+                return null;
+            }
+            try {
+                task.setData(snapshot.getData(), snapshot.getDigest(), snapshot.getExpiry(), true);
+                setTier(task, RequestMetrics.TIER_DISK);
+                return null;
+            } catch (IOException e) {
+                // The entry has been removed. Let's go to the network.
+                e.printStackTrace();
+            }
+        }
+
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Starting to download at " + urlString);
+        }
+
+        final Transport transport = mTransport;
+        if (transport.isAsynchronous(urlString)) {
+            fetchAsynchronously(task, transport, snapshot, now);
+            return FETCH_PENDING;
+        }
+
+        final String eTag = (snapshot != null) ? snapshot.getETag() : null;
+        final String lastModified = (snapshot != null) ? snapshot.getLastModified() : null;
+        final long requestStart = SystemClock.uptimeMillis();
+        mLimiter.onRequestStarted();
+        final Transport.Response response;
+        try {
+            response = transport.open(urlString, eTag, lastModified, task.mMetrics);
+        } catch (DownloadException e) {
+            mLimiter.onRequestFailed(getCongestionReason(e));
+            throw e;
+        }
+        final long latency = SystemClock.uptimeMillis() - requestStart;
+
+        if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            onTransferCompleted(task, latency, 0, 0);
+            response.getInputStream().close();
+            return onResponse(task, snapshot, response, null, now);
+        }
+
+        task.mResponse = response;
+        final long transferStart = SystemClock.uptimeMillis();
+        final byte[] data;
+        try {
+            data = readResponse(response, task);
+        } catch (IOException e) {
+            mLimiter.onRequestFailed(task.mCancelled ? null : getCongestionReason(e));
+            throw e;
+        } catch (RuntimeException e) {
+            mLimiter.onRequestFailed(null);
+            throw e;
+        } finally {
+            task.mResponse = null;
+        }
+        onTransferCompleted(task, latency, SystemClock.uptimeMillis() - transferStart, data.length);
+        return onResponse(task, snapshot, response, data, now);
+    }
+
+    /**
+     * Sends the request of the given task through an asynchronous transport.
+     * The calling download thread only waits for a download slot and for a
+     * decode slot to be reserved: it doesn't wait for the response. The task
+     * then continues in DownloadTask.onFetched() on a decode thread or in
+     * DownloadTask.onFailure().
+     */
+    private void fetchAsynchronously(final DownloadTask task, Transport transport, final DiskDrawableCache.Snapshot snapshot, final long now)
+            throws InterruptedException {
+        mDecodeStage.reserve();
+        try {
+            mLimiter.awaitRequestSlot();
+        } catch (InterruptedException e) {
+            mDecodeStage.cancelReservation();
+            throw e;
+        }
+
+        final String eTag = (snapshot != null) ? snapshot.getETag() : null;
+        final String lastModified = (snapshot != null) ? snapshot.getLastModified() : null;
+        final Transport.Response pending;
+        task.onFetchStarted();
+        try {
+            pending = transport.fetch(task.mUrl, eTag, lastModified, task.mMetrics, new Transport.FetchCallback() {
+                public void onFetched(final Transport.Response response, final byte[] body) {
+                    // Invoked on the transport thread: hand the bytes over
+                    task.onFetchCompleted();
+                    onTransferCompleted(task, response.getLatency(), response.getTransferTime(), body.length);
+                    task.mDecodeScheduleTime = SystemClock.uptimeMillis();
+                    // Uses the slot reserved before sending the request
+                    mDecodeStage.submit(new Runnable() {
+                        public void run() {
+                            task.onFetched(snapshot, response, body, now);
+                        }
+                    });
+                }
+
+                public void onFetchFailed(DownloadException e) {
+                    task.onFetchCompleted();
+                    mDecodeStage.cancelReservation();
+                    mLimiter.onRequestFailed(task.mCancelled ? null : getCongestionReason(e));
+                    task.onFailure(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            mDecodeStage.cancelReservation();
+            mLimiter.onRequestFailed(null);
+            throw e;
+        }
+        if (task.setFetchedResponse(pending) && task.mCancelled) {
+            pending.abort();
+        }
+    }
+
+    /**
+     * Reports a completed request to the limiter and to the metrics.
+     */
+    private void onTransferCompleted(DownloadTask task, long latency, long transferTime, int byteCount) {
+        mLimiter.onRequestCompleted(latency, transferTime, byteCount);
+        if (task.mMetrics != null && byteCount > 0) {
+            task.mMetrics.addDuration(RequestMetrics.STAGE_TRANSFER, transferTime);
+            task.mMetrics.mByteCount += byteCount;
+        }
+    }
+
+    /**
+     * Processes a response: the fetched bytes are stored in the disk cache and
+     * attached to the task or, for a "304 Not Modified" response, the
+     * revalidated entry is refreshed. See fetch() for the returned value.
+     *
+     * @param snapshot The disk cache entry that has been revalidated or null
+     * @param data The body of a "200 OK" response
+     * @param now The time (in milliseconds since epoch) the request started
+     */
+    private Drawable onResponse(DownloadTask task, DiskDrawableCache.Snapshot snapshot, Transport.Response response, byte[] data, long now)
+            throws IOException {
+        final String urlString = task.mUrl;
+        final String key = task.mKey;
+        final DiskDrawableCache diskCache = mDiskCache;
+        final int responseCode = response.getResponseCode();
+
+        if (snapshot != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Not modified at " + urlString);
+            }
+
+            final HttpCachePolicy policy = HttpCachePolicy.fromResponse(response, now, DEFAULT_ENTRY_LIFETIME).merge(snapshot.getETag(),
+                    snapshot.getLastModified());
+            final long updateStart = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+            if (diskCache != null) {
                 try {
+                    diskCache.update(urlString, policy.mExpiry, policy.mETag, policy.mLastModified);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (task.mMetrics != null) {
+                task.mMetrics.addDuration(RequestMetrics.STAGE_CACHE_INSERT, SystemClock.uptimeMillis() - updateStart);
+            }
+
+            if (!task.mDecode) {
+                setTier(task, RequestMetrics.TIER_REVALIDATED);
+                return null;
+            }
+
+            // The previously decoded Drawable is still valid. Reuse it rather
+            // than decoding the cached bytes again.
+            setTier(task, RequestMetrics.TIER_REVALIDATED);
+            final String contentKey = mContentIndex.get(task.mFingerprint, key);
+            final Drawable drawable = (contentKey != null) ? mCache.peek(contentKey, mRetainer) : null;
+            if (drawable != null) {
+                return cacheDrawable(task, contentKey, drawable, policy.mExpiry);
+            }
+            try {
+                task.setData(snapshot.getData(), snapshot.getDigest(), policy.mExpiry, true);
+            } catch (IOException e) {
+                // The entry has been evicted since the request was sent. It is
+                // still valid: download it again rather than failing.
+                if (DEBUG_LOGS_ENABLED) {
+                    Log.d(LOG_TAG, "Revalidated entry evicted at " + urlString);
+                }
+                task.mSkipDiskCache = true;
+                task.mRefetch = true;
+            }
+            return null;
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            throw new DownloadException("Unexpected response code " + responseCode + " at " + urlString, false, responseCode);
+        }
+
+        final HttpCachePolicy policy = HttpCachePolicy.fromResponse(response, now, DEFAULT_ENTRY_LIFETIME);
+
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Download completed at " + urlString);
+        }
+
+        String digest = null;
+        if (diskCache != null && !policy.mNoStore) {
+            final long putStart = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+            try {
+                digest = diskCache.put(urlString, data, policy.mExpiry, policy.mETag, policy.mLastModified);
+            } catch (IOException e) {
+                // A disk cache failure must not prevent the Drawable from
+                // being displayed
+                e.printStackTrace();
+            }
+            if (task.mMetrics != null) {
+                task.mMetrics.addDuration(RequestMetrics.STAGE_CACHE_INSERT, SystemClock.uptimeMillis() - putStart);
+            }
+        }
+
+        setTier(task, RequestMetrics.TIER_NETWORK);
+        if (!task.mDecode || (task.mCancelled && digest != null)) {
+            // Nobody needs the Drawable now. Its bytes are in the disk cache.
+            return null;
+        }
+        task.setData(data, digest, policy.mExpiry, false);
+        return null;
+    }
 
+    /**
+     * Puts the given Drawable in the memory cache under the given content key
+     * and maps the variant of the task to it. The Drawable is retained on
+     * behalf of the cache. The caller must already have retained it: it has
+     * to release it once it has been delivered.
+     */
+    private Drawable cacheDrawable(DownloadTask task, String contentKey, Drawable drawable, long expiry) {
+        final long start = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+        retain(drawable);
+        if (mCache.put(contentKey, drawable, expiry)) {
+            mContentIndex.put(task.mFingerprint, task.mKey, contentKey);
+            if (mCache.peek(contentKey) == null) {
+                // Evicted in the meantime: the mapping would never be removed
+                mContentIndex.remove(contentKey);
+            }
+        } else {
+            release(drawable);
+        }
+        if (task.mMetrics != null) {
+            task.mMetrics.addDuration(RequestMetrics.STAGE_CACHE_INSERT, SystemClock.uptimeMillis() - start);
+        }
+        return drawable;
+    }
+
+    private static void setTier(DownloadTask task, int tier) {
+        if (task.mMetrics != null) {
+            task.mMetrics.mTier = tier;
+        }
+    }
+
+    private void removeFromDiskCache(String urlString) {
+        final DiskDrawableCache diskCache = mDiskCache;
+        if (diskCache != null) {
+            try {
+                diskCache.remove(urlString);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static DiskDrawableCache.Snapshot readFromDiskCache(DiskDrawableCache diskCache, String urlString) {
+        if (diskCache != null) {
+            try {
+                return diskCache.get(urlString);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the reason why the given failure indicates the network or the
+     * server is overloaded or null if it doesn't.
+     */
+    private static String getCongestionReason(IOException e) {
+        if (e instanceof SocketTimeoutException || e.getCause() instanceof SocketTimeoutException) {
+            return "request timed out";
+        }
+        if (e instanceof DownloadException) {
+            final int responseCode = ((DownloadException) e).getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                return "server unavailable (503)";
+            }
+            if (responseCode == 429) {
+                return "too many requests (429)";
+            }
+        }
+        return null;
+    }
+
+    private Drawable decode(DownloadTask task, byte[] data) throws IOException {
+        final long start = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+        final boolean[] opaque = new boolean[1];
+        final Transformation[] transformations = task.mTransformations;
+        /*
+         * Transformations crop the image themselves: the decoded Bitmap keeps
+         * the aspect ratio of the image and covers the target size.
+         */
+        Bitmap bitmap = BitmapDecoder.decode(data, task.mWidth, task.mHeight, transformations != null, mBitmapPool, opaque);
+        if (bitmap != null && transformations != null) {
+            bitmap = transform(task, bitmap, opaque);
+        }
+        if (task.mMetrics != null) {
+            task.mMetrics.addDuration(RequestMetrics.STAGE_DECODE, SystemClock.uptimeMillis() - start);
+        }
+        if (bitmap == null) {
+            throw new DownloadException("Unable to decode Drawable at " + task.mUrl, false);
+        }
+        return new RemoteBitmapDrawable(bitmap, opaque[0]);
+    }
+
+    /**
+     * Applies the transformations of the given task to the given Bitmap.
+     * Intermediate Bitmaps are handed back to the BitmapPool.
+     */
+    private Bitmap transform(DownloadTask task, Bitmap bitmap, boolean[] outOpaque) {
+        final Transformation[] transformations = task.mTransformations;
+        for (int i = 0; i < transformations.length; i++) {
+            final Transformation transformation = transformations[i];
+            final Bitmap result = transformation.transform(bitmap, task.mWidth, task.mHeight, mBitmapPool);
+            if (result != bitmap) {
+                mBitmapPool.put(bitmap);
+                if (result == null) {
                     if (DEBUG_LOGS_ENABLED) {
-                        Log.d(LOG_TAG, "Starting to download at " + urlString);
+                        Log.d(LOG_TAG, "Transformation " + transformation.getKey() + " failed at " + task.mUrl);
                     }
+                    return null;
+                }
+                bitmap = result;
+            }
+            outOpaque[0] &= transformation.preservesOpacity();
+        }
+        return bitmap;
+    }
 
-                    URL url = new URL(urlString);
-                    InputStream is = (InputStream) url.getContent();
-                    final Drawable drawable = Drawable.createFromStream(is, null);
-                    mCache.put(urlString, drawable);
+    /**
+     * Reads the body of the given response. Previews are decoded and delivered
+     * while reading if progressive loading is enabled.
+     */
+    private byte[] readResponse(Transport.Response response, DownloadTask task) throws IOException {
+        final InputStream is = response.getInputStream();
+        final int contentLength = response.getContentLength();
+        // Previews aren't transformed: they are only shown for plain variants
+        if (!mProgressiveLoadingEnabled || !task.mDecode || task.mTransformations != null || contentLength <= 0) {
+            return readFully(is, task);
+        }
 
-                    if (DEBUG_LOGS_ENABLED) {
-                        Log.d(LOG_TAG, "Download completed at " + urlString);
+        try {
+            final byte[] data = new byte[contentLength];
+            int offset = 0;
+            int previewIndex = 0;
+            while (offset < contentLength) {
+                checkCancelled(task);
+                final int count = is.read(data, offset, Math.min(BUFFER_SIZE, contentLength - offset));
+                if (count == -1) {
+                    throw new IOException("Truncated response at " + task.mUrl);
+                }
+                offset += count;
+
+                if (previewIndex < PREVIEW_THRESHOLDS.length && offset < contentLength && offset >= contentLength * PREVIEW_THRESHOLDS[previewIndex]) {
+                    // Skip the thresholds that have been reached at once
+                    while (previewIndex + 1 < PREVIEW_THRESHOLDS.length && offset >= contentLength * PREVIEW_THRESHOLDS[previewIndex + 1]) {
+                        previewIndex++;
+                    }
+                    final Bitmap preview = BitmapDecoder.decodePreview(data, offset, task.mWidth, task.mHeight, PREVIEW_SUBSAMPLING[previewIndex]);
+                    previewIndex++;
+                    if (preview != null) {
+                        if (DEBUG_LOGS_ENABLED) {
+                            Log.d(LOG_TAG, "Preview " + previewIndex + " decoded from " + offset + "/" + contentLength + " bytes at " + task.mUrl);
+                        }
+                        deliverPreview(task, new BitmapDrawable(preview), previewIndex);
                     }
+                }
+            }
+            return data;
+        } finally {
+            is.close();
+        }
+    }
 
-                    mHandler.post(new Runnable() {
-                        public void run() {
-                            // TODO cyril: Actually we should call the callback
-                            // here on ALL RemoteDrawable that asked for the
-                            // given url. (In case two different Drawable asked
-                            // for the same URL and a pending/running URL hasn't
-                            // been re-downloaded - cf previous TODO)
-                            callback.onDrawableLoaded(urlString, drawable);
+    private static byte[] readFully(InputStream is, DownloadTask task) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                checkCancelled(task);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void checkCancelled(DownloadTask task) throws DownloadException {
+        if (task.mCancelled) {
+            throw new DownloadException("Download cancelled at " + task.mUrl, false);
+        }
+    }
+
+    private void deliverDrawable(final DownloadTask task, final Drawable drawable) {
+        final long postTime = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+        mDispatcher.post(new Runnable() {
+            public void run() {
+                onPrefetchCompleted(task, true);
+                if (drawable == null && !task.mCallbacks.isEmpty()) {
+                    /*
+                     * A client joined a prefetch that didn't decode the
+                     * Drawable. Its bytes are now stored locally: executing the
+                     * task again decodes them.
+                     */
+                    mScheduler.schedule(task);
+                    return;
+                }
+
+                removePendingTask(task);
+                final ArrayList<CallbackReference> callbacks = task.mCallbacks;
+                final int count = callbacks.size();
+                for (int i = 0; i < count; i++) {
+                    final Callback callback = callbacks.get(i).get();
+                    if (callback != null) {
+                        if (drawable != null) {
+                            retain(drawable);
                         }
-                    });
+                        callback.onDrawableLoaded(task.mUrl, newInstance(drawable));
+                    }
+                }
+                if (drawable != null) {
+                    release(drawable);
+                }
+                reportMetrics(task, postTime);
+                purgeCollectedCallbacks();
+            }
+        });
+    }
 
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    mHandler.post(new Runnable() {
+    /**
+     * Schedules the given task again once the backoff delay has elapsed. The
+     * task stays pending in the meantime so that new requests for the same
+     * Drawable join it. Waiting on the main thread rather than on the pool
+     * thread keeps the pool available for other downloads.
+     */
+    private void scheduleRetry(final DownloadTask task) {
+        task.mFailedAttempts++;
+        final long delay = mTransport.getRetryDelay(task.mFailedAttempts);
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Retrying download at " + task.mUrl + " in " + delay + "ms (attempt " + (task.mFailedAttempts + 1) + ")");
+        }
+        mHandler.postDelayed(new Runnable() {
+            public void run() {
+                if (task.mCancelled) {
+                    return;
+                }
+                final PrefetchHandle handle = task.mPrefetch;
+                if (handle != null && handle.isCancelled() && task.mCallbacks.isEmpty()) {
+                    removePendingTask(task);
+                    onPrefetchCompleted(task, false);
+                    return;
+                }
+                mScheduler.schedule(task);
+            }
+        }, delay);
+    }
+
+    private void deliverPreview(final DownloadTask task, final Drawable preview, final int quality) {
+        mDispatcher.post(new Runnable() {
+            public void run() {
+                final ArrayList<CallbackReference> callbacks = task.mCallbacks;
+                final int count = callbacks.size();
+                for (int i = 0; i < count; i++) {
+                    final Callback callback = callbacks.get(i).get();
+                    if (callback != null) {
+                        callback.onDrawablePreviewLoaded(task.mUrl, newInstance(preview), quality);
+                    }
+                }
+            }
+        });
+    }
+
+    private void deliverFailure(final DownloadTask task) {
+        final long postTime = (task.mMetrics != null) ? SystemClock.uptimeMillis() : 0;
+        setTier(task, RequestMetrics.TIER_NONE);
+        mDispatcher.post(new Runnable() {
+            public void run() {
+                removePendingTask(task);
+                onPrefetchCompleted(task, false);
+                final ArrayList<CallbackReference> callbacks = task.mCallbacks;
+                final int count = callbacks.size();
+                for (int i = 0; i < count; i++) {
+                    final Callback callback = callbacks.get(i).get();
+                    if (callback != null) {
+                        callback.onDrawableLoadingFailed(task.mUrl);
+                    }
+                }
+                reportMetrics(task, postTime);
+                purgeCollectedCallbacks();
+            }
+        });
+    }
+
+    /**
+     * Notifies the metrics listener once a task has been delivered. Must be
+     * called from the main thread.
+     */
+    private void reportMetrics(DownloadTask task, long postTime) {
+        final RequestMetrics metrics = task.mMetrics;
+        final MetricsListener listener = mMetricsListener;
+        if (metrics != null && listener != null) {
+            metrics.addDuration(RequestMetrics.STAGE_DELIVERY, SystemClock.uptimeMillis() - postTime);
+            listener.onRequestCompleted(metrics);
+        }
+    }
+
+    /**
+     * Registers a new user of the Bitmap of the given Drawable. The Bitmap
+     * won't be reused by the BitmapPool until all of its users have released
+     * it. The Drawables handed to clients are already retained: this method is
+     * only needed to share such a Drawable with another user.
+     */
+    public void retain(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                mBitmapPool.acquire(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Unregisters a user of the Bitmap of the given Drawable. The Drawable (and
+     * the Drawables sharing its Bitmap) must not be drawn by that user
+     * anymore: once all users are gone, the Bitmap may be drawn into by a
+     * decoder. Releasing a Drawable that hasn't been retained does nothing.
+     */
+    public void release(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                mBitmapPool.release(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Returns a new Drawable sharing the state (i.e. the pixels for a
+     * BitmapDrawable) of the given Drawable. A Drawable instance can't be
+     * shared between several clients as it holds per-client properties such as
+     * bounds or callbacks.
+     */
+    private static Drawable newInstance(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        final Drawable.ConstantState state = drawable.getConstantState();
+        return (state == null) ? drawable : state.newDrawable();
+    }
+
+    private class DownloadTask extends DownloadScheduler.Task {
+
+        final String mUrl;
+        final int mWidth;
+        final int mHeight;
+        final Transformation[] mTransformations;
+        final String mKey;
+        final long mFingerprint;
+
+        /**
+         * The number of attempts that failed with a retryable failure. Only
+         * accessed by the thread executing the task or processing its
+         * response.
+         */
+        int mFailedAttempts;
+
+        /**
+         * The measurements of the task or null if no metrics listener was set
+         * when the task has been created.
+         */
+        final RequestMetrics mMetrics;
+
+        /**
+         * Whether the downloaded Drawable must be decoded. Only prefetches
+         * targeting the disk tier don't decode.
+         */
+        volatile boolean mDecode = true;
+
+        /**
+         * The prefetch this task belongs to or null. Only accessed from the
+         * main thread.
+         */
+        PrefetchHandle mPrefetch;
+
+        /**
+         * Set once nobody waits for the task anymore.
+         */
+        volatile boolean mCancelled;
+
+        /**
+         * The response being read or fetched or null. During an asynchronous
+         * fetch, it is only assigned with the task lock held (see
+         * setFetchedResponse()).
+         */
+        volatile Transport.Response mResponse;
+
+        /**
+         * Set once the transport has completed the asynchronous fetch of the
+         * task. Guarded by the task.
+         */
+        private boolean mFetchCompleted;
+
+        /**
+         * The fetched bytes waiting to be decoded, their expiry and their
+         * digest if they are stored in the disk cache (null otherwise). Handed
+         * from the download thread to the decode thread by the DecodeStage.
+         * mFromDisk tells whether the bytes have been read from the disk cache
+         * rather than downloaded.
+         */
+        byte[] mData;
+        long mExpiry;
+        String mDigest;
+        boolean mFromDisk;
+        long mDecodeScheduleTime;
+
+        /**
+         * Set once the disk cache entry of the task has been found undecodable
+         * or has vanished.
+         */
+        volatile boolean mSkipDiskCache;
+
+        /**
+         * Set by onResponse() when a revalidated disk cache entry has been
+         * evicted before being read. The task must be fetched again.
+         */
+        boolean mRefetch;
+
+        /**
+         * The callbacks to notify once the task is over. Callbacks are weakly
+         * referenced so that a pending download doesn't leak the
+         * RemoteDrawables waiting for it (and their View and Activity). This
+         * list is only accessed from the main thread.
+         */
+        final ArrayList<CallbackReference> mCallbacks = new ArrayList<CallbackReference>(1);
+
+        DownloadTask(String url, int width, int height, Transformation[] transformations, String key, long fingerprint, int priority) {
+            super(priority);
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+            mTransformations = transformations;
+            mKey = key;
+            mFingerprint = fingerprint;
+            mMetrics = (mMetricsListener != null) ? new RequestMetrics(url) : null;
+        }
+
+        void setData(byte[] data, String digest, long expiry, boolean fromDisk) {
+            mData = data;
+            mDigest = digest;
+            mExpiry = expiry;
+            mFromDisk = fromDisk;
+        }
+
+        /*
+         * The following methods hand the response of an asynchronous fetch
+         * over between the thread sending the request and the transport thread
+         * completing it, in any order.
+         */
+
+        synchronized void onFetchStarted() {
+            mFetchCompleted = false;
+        }
 
+        synchronized void onFetchCompleted() {
+            mFetchCompleted = true;
+            mResponse = null;
+        }
+
+        /**
+         * Sets the response returned by the transport unless the fetch has
+         * already been completed. Returns true if the response is pending.
+         */
+        synchronized boolean setFetchedResponse(Transport.Response response) {
+            if (mFetchCompleted) {
+                return false;
+            }
+            mResponse = response;
+            return true;
+        }
+
+        void addCallback(Callback callback) {
+            mCallbacks.add(new CallbackReference(callback, this));
+        }
+
+        /**
+         * Removes the given callback. Returns true if it was registered.
+         */
+        boolean removeCallback(Callback callback) {
+            final int count = mCallbacks.size();
+            for (int i = 0; i < count; i++) {
+                if (mCallbacks.get(i).get() == callback) {
+                    mCallbacks.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected void execute() {
+            if (mCancelled) {
+                return;
+            }
+            if (mMetrics != null) {
+                mMetrics.mAttemptCount++;
+                mMetrics.addDuration(RequestMetrics.STAGE_QUEUE_WAIT, getWaitTime());
+            }
+            try {
+                final Drawable drawable = fetch(this);
+                if (drawable == FETCH_PENDING) {
+                    // Continued by onFetched() or onFailure()
+                    return;
+                }
+                if (mRefetch) {
+                    mRefetch = false;
+                    mScheduler.schedule(this);
+                    return;
+                }
+                if (mData != null) {
+                    mDecodeScheduleTime = SystemClock.uptimeMillis();
+                    mDecodeStage.execute(new Runnable() {
                         public void run() {
-                            callback.onDrawableLoadingFailed(urlString);
+                            decodeData();
                         }
                     });
+                    return;
                 }
+                mFailureCache.remove(mUrl);
+                deliverDrawable(this, drawable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mData = null;
+                deliverFailure(this);
+            } catch (IOException e) {
+                onFailure(e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                mFailureCache.onFailure(mUrl, true);
+                deliverFailure(this);
             }
-        });
+        }
 
-        // Here null is returned to indicate the Drawable is not ready
-        return null;
+        /**
+         * Processes a response fetched asynchronously. Executed by the decode
+         * threads.
+         */
+        void onFetched(DiskDrawableCache.Snapshot snapshot, Transport.Response response, byte[] body, long now) {
+            if (mMetrics != null) {
+                mMetrics.addDuration(RequestMetrics.STAGE_QUEUE_WAIT, SystemClock.uptimeMillis() - mDecodeScheduleTime);
+            }
+            try {
+                final Drawable drawable = onResponse(this, snapshot, response, body, now);
+                if (mRefetch) {
+                    mRefetch = false;
+                    mScheduler.schedule(this);
+                    return;
+                }
+                if (mData != null) {
+                    mDecodeScheduleTime = SystemClock.uptimeMillis();
+                    decodeData();
+                    return;
+                }
+                mFailureCache.remove(mUrl);
+                deliverDrawable(this, drawable);
+            } catch (IOException e) {
+                onFailure(e);
+            } catch (Exception e) {
+                e.printStackTrace();
+                mFailureCache.onFailure(mUrl, true);
+                deliverFailure(this);
+            }
+        }
+
+        /**
+         * Retries the task after a retryable failure or reports the failure.
+         */
+        void onFailure(IOException e) {
+            if (mCancelled) {
+                if (DEBUG_LOGS_ENABLED) {
+                    Log.d(LOG_TAG, "Aborted download at " + mUrl);
+                }
+                deliverFailure(this);
+                return;
+            }
+            final DownloadException failure = Transport.classify(e, mUrl);
+            if (failure.isRetryable() && mFailedAttempts < mTransport.getMaxRetries()) {
+                scheduleRetry(this);
+            } else {
+                e.printStackTrace();
+                mFailureCache.onFailure(mUrl, !failure.isRetryable());
+                deliverFailure(this);
+            }
+        }
+
+        @Override
+        protected void onDropped() {
+            deliverFailure(this);
+        }
+
+        /**
+         * Decodes the fetched bytes. Executed by the decode threads.
+         */
+        private void decodeData() {
+            final byte[] data = mData;
+            mData = null;
+            if (mMetrics != null) {
+                mMetrics.addDuration(RequestMetrics.STAGE_QUEUE_WAIT, SystemClock.uptimeMillis() - mDecodeScheduleTime);
+            }
+            final boolean stored = mDigest != null;
+            if (mCancelled && stored) {
+                // Nobody needs the Drawable now. Its bytes are in the disk
+                // cache.
+                deliverDrawable(this, null);
+                return;
+            }
+
+            try {
+                final String digest = stored ? mDigest : DiskDrawableCache.digestOf(data);
+                final String contentKey = ContentIndex.getContentKey(digest, mWidth, mHeight, mTransformations);
+                Drawable drawable = mCache.peek(contentKey, mRetainer);
+                if (drawable != null) {
+                    // The same bytes have already been decoded for another URL
+                    if (DEBUG_LOGS_ENABLED) {
+                        Log.d(LOG_TAG, "Reusing the Drawable decoded from identical content for " + mUrl);
+                    }
+                } else {
+                    drawable = decode(this, data);
+                    retain(drawable);
+                }
+                drawable = cacheDrawable(this, contentKey, drawable, mExpiry);
+                mFailureCache.remove(mUrl);
+                deliverDrawable(this, drawable);
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (mFromDisk && !mSkipDiskCache) {
+                    // The disk cache entry is corrupted. Let's go to the
+                    // network.
+                    mSkipDiskCache = true;
+                    removeFromDiskCache(mUrl);
+                    mScheduler.schedule(this);
+                    return;
+                }
+                mFailureCache.onFailure(mUrl, true);
+                deliverFailure(this);
+            } catch (Exception e) {
+                e.printStackTrace();
+                deliverFailure(this);
+            }
+        }
+    }
+
+    /**
+     * A weak reference on a callback remembering the task it is registered
+     * to.
+     */
+    private final class CallbackReference extends WeakReference<Callback> {
+
+        final DownloadTask mTask;
+
+        CallbackReference(Callback callback, DownloadTask task) {
+            super(callback, mCollectedCallbacks);
+            mTask = task;
+        }
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * A thread-safe negative cache remembering the URLs whose download recently
+ * failed. A URL is in backoff for a while after a failure: requesting it
+ * during this period fails immediately without touching the network. The
+ * backoff doubles with each consecutive failure of the URL.
+ * <p>
+ * Permanent failures (resource not found, undecodable data, ...) are backed
+ * off much longer than transient ones (timeouts, connection resets, server
+ * errors, ...). The number of remembered URLs is bounded: the least recently
+ * failed ones are forgotten first.
+ *
+ * @author Cyril Mottier
+ */
+public class FailureCache {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = FailureCache.class.getSimpleName();
+
+    private static final long DEFAULT_TRANSIENT_BACKOFF = 10 * 1000L;
+    private static final long DEFAULT_MAX_TRANSIENT_BACKOFF = 5 * 60 * 1000L;
+    private static final long DEFAULT_PERMANENT_BACKOFF = 5 * 60 * 1000L;
+    private static final long DEFAULT_MAX_PERMANENT_BACKOFF = 60 * 60 * 1000L;
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    private long mTransientBackoff = DEFAULT_TRANSIENT_BACKOFF;
+    private long mMaxTransientBackoff = DEFAULT_MAX_TRANSIENT_BACKOFF;
+    private long mPermanentBackoff = DEFAULT_PERMANENT_BACKOFF;
+    private long mMaxPermanentBackoff = DEFAULT_MAX_PERMANENT_BACKOFF;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries The maximum number of URLs to remember
+     */
+    public FailureCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be strictly positive");
+        }
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, false) {
+            private static final long serialVersionUID = -2745863210463915837L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the backoff applied after a transient failure (timeout, server
+     * error, ...).
+     *
+     * @param backoff The backoff after the first failure in milliseconds
+     * @param maxBackoff The maximum backoff in milliseconds
+     */
+    public synchronized void setTransientBackoff(long backoff, long maxBackoff) {
+        mTransientBackoff = backoff;
+        mMaxTransientBackoff = Math.max(backoff, maxBackoff);
+    }
+
+    /**
+     * Sets the backoff applied after a permanent failure (resource not found,
+     * undecodable data, ...).
+     *
+     * @param backoff The backoff after the first failure in milliseconds
+     * @param maxBackoff The maximum backoff in milliseconds
+     */
+    public synchronized void setPermanentBackoff(long backoff, long maxBackoff) {
+        mPermanentBackoff = backoff;
+        mMaxPermanentBackoff = Math.max(backoff, maxBackoff);
+    }
+
+    /**
+     * Returns true if the download of the given URL failed recently and
+     * mustn't be attempted again yet.
+     */
+    public synchronized boolean isBackingOff(String urlString) {
+        final Entry entry = mEntries.get(urlString);
+        return entry != null && entry.mRetryTime > SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a failed download of the given URL.
+     *
+     * @param urlString The URL that couldn't be downloaded
+     * @param permanent true if the failure will happen again (resource not
+     *            found for instance), false if it is transient
+     */
+    public synchronized void onFailure(String urlString, boolean permanent) {
+        Entry entry = mEntries.remove(urlString);
+        if (entry == null) {
+            entry = new Entry();
+        }
+        entry.mFailureCount++;
+
+        long backoff = permanent ? mPermanentBackoff : mTransientBackoff;
+        final long maxBackoff = permanent ? mMaxPermanentBackoff : mMaxTransientBackoff;
+        for (int i = 1; i < entry.mFailureCount && backoff < maxBackoff; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoff);
+        entry.mRetryTime = SystemClock.elapsedRealtime() + backoff;
+
+        // Re-inserted so that the least recently failed URLs are evicted first
+        mEntries.put(urlString, entry);
+
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Backing off " + urlString + " for " + backoff + "ms after " + entry.mFailureCount + " failure(s)");
+        }
+    }
+
+    /**
+     * Forgets the failures of the given URL (once it has been downloaded
+     * successfully for instance).
+     */
+    public synchronized void remove(String urlString) {
+        mEntries.remove(urlString);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static class Entry {
+        int mFailureCount;
+        long mRetryTime;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import android.os.SystemClock;
+
+/**
+ * A Transport serving "file://" URLs from the local file system. It behaves
+ * like an HTTP server: missing files are "404 Not Found" failures, responses
+ * carry a Last-Modified validator and conditional requests are answered with
+ * "304 Not Modified" when the file hasn't changed. It is meant to exercise the
+ * download pipeline (caches, revalidation, decoding, ...) without network.
+ * <p>
+ * A latency may be simulated to reproduce slow networks.
+ *
+ * @author Cyril Mottier
+ */
+public class FileTransport extends Transport {
+
+    private static final String SCHEME = "file:";
+
+    private volatile long mSimulatedLatency;
+
+    /**
+     * Delays every response by the given time (in milliseconds).
+     */
+    public void setSimulatedLatency(long latency) {
+        mSimulatedLatency = latency;
+    }
+
+    public long getSimulatedLatency() {
+        return mSimulatedLatency;
+    }
+
+    @Override
+    public Response open(String urlString, String eTag, String lastModified, RequestMetrics metrics) throws DownloadException {
+        if (!urlString.regionMatches(true, 0, SCHEME, 0, SCHEME.length())) {
+            throw new DownloadException("Unsupported URL " + urlString, false);
+        }
+
+        final File file;
+        try {
+            file = new File(new URI(urlString));
+        } catch (Exception e) {
+            // URISyntaxException or IllegalArgumentException
+            throw new DownloadException("Malformed URL " + urlString, false, e);
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        final long latency = mSimulatedLatency;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DownloadException("Interrupted while opening " + urlString, true, e);
+            }
+        }
+
+        if (!file.isFile()) {
+            throw new DownloadException("File not found " + urlString, false, HttpURLConnection.HTTP_NOT_FOUND);
+        }
+
+        // HTTP dates have a one second precision
+        final long fileLastModified = file.lastModified() / 1000 * 1000;
+        int responseCode = HttpURLConnection.HTTP_OK;
+        if (lastModified != null && fileLastModified <= parseDate(lastModified, -1)) {
+            responseCode = HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        final FileResponse response = new FileResponse(file, responseCode, formatDate(fileLastModified));
+        response.mLatency = SystemClock.uptimeMillis() - start;
+        if (metrics != null) {
+            metrics.addDuration(RequestMetrics.STAGE_FIRST_BYTE, response.mLatency);
+        }
+        return response;
+    }
+
+    private static String formatDate(long date) {
+        // SimpleDateFormat isn't thread-safe
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+
+    private static final class FileResponse extends Response {
+
+        private final File mFile;
+        private final int mResponseCode;
+        private final String mLastModified;
+
+        FileResponse(File file, int responseCode, String lastModified) {
+            mFile = file;
+            mResponseCode = responseCode;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if ("Last-Modified".equalsIgnoreCase(name)) {
+                return mLastModified;
+            }
+            if ("Content-Length".equalsIgnoreCase(name) && mResponseCode == HttpURLConnection.HTTP_OK) {
+                return String.valueOf(mFile.length());
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (mResponseCode != HttpURLConnection.HTTP_OK) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public void abort() {
+            // Local reads don't block: the reading thread checks for
+            // cancellation between reads
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * Runs Runnables posted from any thread on the main thread in batches aligned
+ * on frames. Posting a message per completed download floods the main looper
+ * when many downloads complete at once (cache hits, fast network, ...) and
+ * each delivery invalidates its View. Instead, the Runnables posted during a
+ * frame are run by a single message at the beginning of the next frame so
+ * that their invalidations are drawn at once.
+ * <p>
+ * A batch stops once the frame budget has been spent. The remaining Runnables
+ * are carried over to the next frame so that bursts don't cause jank.
+ *
+ * @author Cyril Mottier
+ */
+final class FrameDispatcher {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = FrameDispatcher.class.getSimpleName();
+
+    /**
+     * Duration of a frame at 60fps.
+     */
+    private static final long FRAME_DURATION = 16;
+
+    /**
+     * Part of a frame the Runnables of a batch may use. The rest is left to
+     * the layout and drawing of the invalidated Views.
+     */
+    private static final long FRAME_BUDGET = 8;
+
+    private final Handler mHandler;
+
+    /*
+     * The following fields are guarded by mPending.
+     */
+    private final ArrayList<Runnable> mPending = new ArrayList<Runnable>();
+    private boolean mScheduled;
+
+    /**
+     * The batch being run. Only accessed from the main thread.
+     */
+    private ArrayList<Runnable> mRunning = new ArrayList<Runnable>();
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * @param handler A Handler of the main thread
+     */
+    FrameDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Runs the given Runnable on the main thread at the beginning of the next
+     * frame (or a later one if the next frame budget is spent). Runnables are
+     * run in the order they have been posted. May be called from any thread.
+     */
+    void post(Runnable runnable) {
+        synchronized (mPending) {
+            mPending.add(runnable);
+            if (!mScheduled) {
+                mScheduled = true;
+                scheduleNextFrame();
+            }
+        }
+    }
+
+    /**
+     * Runs the pending Runnables until the budget of the frame is spent.
+     */
+    private void dispatch() {
+        final long deadline = SystemClock.uptimeMillis() + FRAME_BUDGET;
+
+        // Carried over Runnables are run before the newly posted ones
+        synchronized (mPending) {
+            mRunning.addAll(mPending);
+            mPending.clear();
+        }
+
+        final ArrayList<Runnable> running = mRunning;
+        final int count = running.size();
+        int index = 0;
+        while (index < count) {
+            final Runnable runnable = running.get(index);
+            running.set(index++, null);
+            runnable.run();
+            if (SystemClock.uptimeMillis() >= deadline) {
+                break;
+            }
+        }
+
+        if (index < count) {
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Frame budget spent: " + (count - index) + " deliveries carried over");
+            }
+            mRunning = new ArrayList<Runnable>(running.subList(index, count));
+        } else {
+            running.clear();
+        }
+
+        synchronized (mPending) {
+            if (mRunning.isEmpty() && mPending.isEmpty()) {
+                mScheduled = false;
+            } else {
+                scheduleNextFrame();
+            }
+        }
+    }
+
+    /**
+     * Schedules a dispatch at the beginning of the next frame. Must be called
+     * with the lock on mPending held.
+     */
+    private void scheduleNextFrame() {
+        final long now = SystemClock.uptimeMillis();
+        mHandler.postAtTime(mDispatchRunnable, now - (now % FRAME_DURATION) + FRAME_DURATION);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+/**
+ * A MetricsListener aggregating the durations of each stage in histograms.
+ * Histograms have a fixed number of exponential buckets (0ms, 1ms, 2-3ms,
+ * 4-7ms, ...) so that recording a request never allocates. The aggregated
+ * values can be dumped at any time using dump().
+ *
+ * @author Cyril Mottier
+ */
+public class HistogramMetricsListener implements MetricsListener {
+
+    /**
+     * Bucket 0 contains the 0ms durations and bucket i (i > 0) the durations
+     * in [2^(i-1), 2^i). The last bucket contains all durations greater than
+     * or equal to 2^(BUCKET_COUNT - 2) ms (about 65s).
+     */
+    private static final int BUCKET_COUNT = 18;
+
+    /*
+     * The following fields are guarded by the HistogramMetricsListener
+     * instance.
+     */
+    private final long[][] mStageBuckets = new long[RequestMetrics.STAGE_COUNT][BUCKET_COUNT];
+    private final long[] mStageTotals = new long[RequestMetrics.STAGE_COUNT];
+    private final long[] mStageMax = new long[RequestMetrics.STAGE_COUNT];
+    private final long[] mTierCounts = new long[RequestMetrics.TIER_COUNT];
+    private long mRequestCount;
+    private long mByteCount;
+    private long mRetryCount;
+
+    public synchronized void onRequestCompleted(RequestMetrics metrics) {
+        mRequestCount++;
+        mTierCounts[metrics.getTier()]++;
+        mByteCount += metrics.getByteCount();
+        if (metrics.getAttemptCount() > 1) {
+            mRetryCount += metrics.getAttemptCount() - 1;
+        }
+
+        // Memory hits don't go through the other stages
+        if (metrics.getTier() == RequestMetrics.TIER_MEMORY) {
+            return;
+        }
+        for (int stage = 0; stage < RequestMetrics.STAGE_COUNT; stage++) {
+            final long duration = metrics.getDuration(stage);
+            mStageBuckets[stage][getBucket(duration)]++;
+            mStageTotals[stage] += duration;
+            if (duration > mStageMax[stage]) {
+                mStageMax[stage] = duration;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of recorded requests.
+     */
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * Returns the number of requests served by the given tier.
+     *
+     * @param tier One of the RequestMetrics.TIER_* constants
+     */
+    public synchronized long getTierCount(int tier) {
+        return mTierCounts[tier];
+    }
+
+    /**
+     * Returns the number of bytes received from the network.
+     */
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns an estimation of the given percentile of the durations of a
+     * stage: the upper bound of the bucket containing the percentile.
+     *
+     * @param stage One of the RequestMetrics.STAGE_* constants
+     * @param percentile A value between 0 and 100
+     */
+    public synchronized long getPercentile(int stage, float percentile) {
+        final long[] buckets = mStageBuckets[stage];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                return Math.min(getBucketUpperBound(i), mStageMax[stage]);
+            }
+        }
+        return mStageMax[stage];
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public synchronized void reset() {
+        for (int stage = 0; stage < RequestMetrics.STAGE_COUNT; stage++) {
+            final long[] buckets = mStageBuckets[stage];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = 0;
+            }
+            mStageTotals[stage] = 0;
+            mStageMax[stage] = 0;
+        }
+        for (int tier = 0; tier < RequestMetrics.TIER_COUNT; tier++) {
+            mTierCounts[tier] = 0;
+        }
+        mRequestCount = 0;
+        mByteCount = 0;
+        mRetryCount = 0;
+    }
+
+    /**
+     * Returns a human readable summary of the recorded values.
+     */
+    public synchronized String dump() {
+        final StringBuilder sb = new StringBuilder(1024);
+        sb.append("Requests: ").append(mRequestCount).append(", bytes: ").append(mByteCount).append(", retries: ").append(mRetryCount).append('\n');
+
+        sb.append("Tiers:");
+        for (int tier = 0; tier < RequestMetrics.TIER_COUNT; tier++) {
+            sb.append(' ').append(RequestMetrics.getTierName(tier)).append('=').append(mTierCounts[tier]);
+        }
+        sb.append('\n');
+
+        final long stageCount = mRequestCount - mTierCounts[RequestMetrics.TIER_MEMORY];
+        for (int stage = 0; stage < RequestMetrics.STAGE_COUNT; stage++) {
+            sb.append(RequestMetrics.getStageName(stage)).append(": avg=").append(stageCount == 0 ? 0 : mStageTotals[stage] / stageCount);
+            sb.append("ms p50=").append(getPercentile(stage, 50));
+            sb.append("ms p90=").append(getPercentile(stage, 90));
+            sb.append("ms p99=").append(getPercentile(stage, 99));
+            sb.append("ms max=").append(mStageMax[stage]).append("ms\n");
+        }
+        return sb.toString();
+    }
+
+    private static int getBucket(long duration) {
+        int bucket = 0;
+        while (duration > 0 && bucket < BUCKET_COUNT - 1) {
+            duration >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static long getBucketUpperBound(int bucket) {
+        return (bucket == 0) ? 0 : (1L << bucket) - 1;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+/**
+ * Caching information (freshness and validators) extracted from the headers of
+ * an HTTP response.
+ *
+ * @author Cyril Mottier
+ */
+final class HttpCachePolicy {
+
+    /**
+     * Part of the age of the resource (time since its last modification) used
+     * as its lifetime when the response has no explicit freshness information.
+     */
+    private static final int HEURISTIC_LIFETIME_FRACTION = 10;
+
+    final long mExpiry;
+    final boolean mNoStore;
+    final String mETag;
+    final String mLastModified;
+
+    private HttpCachePolicy(long expiry, boolean noStore, String eTag, String lastModified) {
+        mExpiry = expiry;
+        mNoStore = noStore;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Parses the caching headers of the given response. The freshness lifetime
+     * is computed (in that order) from the Cache-Control directives, from the
+     * Expires header or heuristically from the Last-Modified header.
+     *
+     * @param response A received response
+     * @param now The current time in milliseconds since epoch
+     * @param defaultLifetime The lifetime to use if none can be computed
+     */
+    static HttpCachePolicy fromResponse(Transport.Response response, long now, long defaultLifetime) {
+        boolean noStore = false;
+        boolean noCache = false;
+        long maxAge = -1;
+
+        final String cacheControl = response.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            final String[] directives = cacheControl.split(",");
+            for (String directive : directives) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-store")) {
+                    noStore = true;
+                } else if (directive.equals("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring(8).trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // Ignore malformed max-age directives
+                    }
+                }
+            }
+        }
+
+        final long date = response.getHeaderFieldDate("Date", now);
+        final long lastModified = response.getHeaderFieldDate("Last-Modified", -1);
+
+        long lifetime;
+        if (noCache) {
+            lifetime = 0;
+        } else if (maxAge >= 0) {
+            lifetime = maxAge;
+            final int age = response.getHeaderFieldInt("Age", 0);
+            if (age > 0) {
+                lifetime -= age * 1000L;
+            }
+        } else if (response.getHeaderField("Expires") != null) {
+            // An invalid Expires header (such as "0") means "already expired"
+            lifetime = response.getHeaderFieldDate("Expires", date) - date;
+        } else if (lastModified > 0 && lastModified < date) {
+            lifetime = Math.min((date - lastModified) / HEURISTIC_LIFETIME_FRACTION, defaultLifetime);
+        } else {
+            lifetime = defaultLifetime;
+        }
+
+        return new HttpCachePolicy(now + Math.max(lifetime, 0), noStore, response.getHeaderField("ETag"), response.getHeaderField("Last-Modified"));
+    }
+
+    /**
+     * Returns the policy resulting from a "304 Not Modified" response. Such a
+     * response may omit the validators: the ones of the revalidated entry are
+     * kept in that case.
+     */
+    HttpCachePolicy merge(String eTag, String lastModified) {
+        return new HttpCachePolicy(mExpiry, mNoStore, mETag != null ? mETag : eTag, mLastModified != null ? mLastModified : lastModified);
+    }
+}
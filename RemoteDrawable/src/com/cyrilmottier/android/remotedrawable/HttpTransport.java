@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * A blocking Transport built on URLConnection: each request occupies the
+ * calling thread until its response has been read. Every connection has a
+ * connect and a read timeout so that a stalled host can't block a download
+ * thread forever. Connections are kept alive and reused by the platform as
+ * long as the responses are entirely read and closed.
+ *
+ * @author Cyril Mottier
+ */
+public class HttpTransport extends Transport {
+
+    static {
+        /*
+         * Prior to Froyo, reusing a connection whose response hasn't been
+         * entirely read may corrupt the following responses. Keep-alive is
+         * disabled on those versions.
+         */
+        if (Build.VERSION.SDK_INT < 8) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    /**
+     * Same as open(String, String, String, RequestMetrics) without metrics.
+     */
+    public Response open(String urlString, String eTag, String lastModified) throws DownloadException {
+        return open(urlString, eTag, lastModified, null);
+    }
+
+    @Override
+    public Response open(String urlString, String eTag, String lastModified, RequestMetrics metrics) throws DownloadException {
+        final URLConnection connection;
+        final int responseCode;
+        try {
+            connection = new URL(urlString).openConnection();
+            connection.setConnectTimeout(getConnectTimeout());
+            connection.setReadTimeout(getReadTimeout());
+            connection.setUseCaches(false);
+            if (eTag != null) {
+                connection.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            if (!(connection instanceof HttpURLConnection)) {
+                connection.connect();
+                return new ConnectionResponse(connection, HttpURLConnection.HTTP_OK);
+            }
+            if (metrics == null) {
+                responseCode = ((HttpURLConnection) connection).getResponseCode();
+            } else {
+                final long start = SystemClock.uptimeMillis();
+                connection.connect();
+                final long connected = SystemClock.uptimeMillis();
+                responseCode = ((HttpURLConnection) connection).getResponseCode();
+                metrics.addDuration(RequestMetrics.STAGE_CONNECT, connected - start);
+                metrics.addDuration(RequestMetrics.STAGE_FIRST_BYTE, SystemClock.uptimeMillis() - connected);
+            }
+        } catch (IOException e) {
+            throw classify(e, urlString);
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return new ConnectionResponse(connection, responseCode);
+        }
+
+        discardErrorStream((HttpURLConnection) connection);
+        throw unexpectedResponse(responseCode, urlString);
+    }
+
+    /**
+     * Reads and closes the body of an error response so that the connection
+     * can be reused.
+     */
+    private static void discardErrorStream(HttpURLConnection connection) {
+        final InputStream is = connection.getErrorStream();
+        if (is == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[1024];
+            while (is.read(buffer) != -1) {
+                // Discard
+            }
+        } catch (IOException e) {
+            // The connection won't be reused
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A response read from a URLConnection.
+     */
+    private static final class ConnectionResponse extends Response {
+
+        private final URLConnection mConnection;
+        private final int mResponseCode;
+
+        ConnectionResponse(URLConnection connection, int responseCode) {
+            mConnection = connection;
+            mResponseCode = responseCode;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public void abort() {
+            if (mConnection instanceof HttpURLConnection) {
+                ((HttpURLConnection) mConnection).disconnect();
+            }
+        }
+    }
+}
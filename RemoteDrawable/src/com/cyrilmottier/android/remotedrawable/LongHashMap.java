@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.ArrayList;
+
+/**
+ * A map from primitive longs to objects using open addressing. Keys and values
+ * are stored in two parallel arrays: there is no per-entry object and no key
+ * boxing. Collisions are resolved by linear probing and removals shift the
+ * following entries back so that no tombstone is needed.
+ * <p>
+ * This class isn't thread-safe. Null values aren't allowed.
+ *
+ * @author Cyril Mottier
+ */
+public class LongHashMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mMask;
+    private int mSize;
+
+    public LongHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The number of entries the map is expected to hold
+     *            without growing
+     */
+    public LongHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        // Keep the load factor below 3/4
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        int slot = slotOf(key);
+        Object value;
+        while ((value = values[slot]) != null) {
+            if (keys[slot] == key) {
+                return (V) value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the given key to the given value.
+     *
+     * @return The value previously mapped to the key or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values aren't allowed");
+        }
+        int slot = slotOf(key);
+        Object previous;
+        while ((previous = mValues[slot]) != null) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return (V) previous;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > (mMask + 1) * 3 / 4) {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the given key.
+     *
+     * @return The value mapped to the key or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int slot = slotOf(key);
+        Object value;
+        while ((value = mValues[slot]) != null) {
+            if (mKeys[slot] == key) {
+                removeSlot(slot);
+                return (V) value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        final Object[] values = mValues;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Returns a new list containing the values of this map.
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        final ArrayList<V> list = new ArrayList<V>(mSize);
+        final Object[] values = mValues;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                list.add((V) values[i]);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Empties the given slot and moves back the entries of the same probe
+     * sequence that follow it.
+     */
+    private void removeSlot(int slot) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        int hole = slot;
+        int next = (hole + 1) & mMask;
+        while (values[next] != null) {
+            final int home = slotOf(keys[next]);
+            // Move the entry if its home slot isn't between the hole
+            // (excluded) and its current slot (included)
+            if (((next - home) & mMask) >= ((next - hole) & mMask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mMask;
+        }
+        values[hole] = null;
+        mSize--;
+    }
+
+    private void grow() {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        allocate(oldValues.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                while (mValues[slot] != null) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    private int slotOf(long key) {
+        // Spreads the bits of the key (fingerprints are well distributed but
+        // arbitrary keys may not be)
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * A thread-safe memory cache of Drawables bounded by the number of bytes used
+ * by the pixels of the cached Drawables. When the cache is full, the least
+ * recently used entries are evicted. Entries may have an expiry date after
+ * which they are not returned by get() anymore but can still be peeked at (to
+ * be reused once revalidated for instance).
+ * <p>
+ * Reads never block: they are served by a ConcurrentHashMap and only record
+ * the access in a buffer. The LRU order is updated by draining this buffer
+ * when the cache is modified (or when the buffer is getting full and nobody
+ * else is holding the lock).
+ *
+ * @author Cyril Mottier
+ */
+public class LruDrawableCache {
+
+    /**
+     * Interface definition for a callback to be invoked when a Drawable leaves
+     * the cache: when it is evicted because the cache is full but also when it
+     * is replaced or removed.
+     */
+    public static interface OnEvictionListener {
+        void onDrawableEvicted(String key, Drawable drawable);
+    }
+
+    /**
+     * Interface definition for a callback registering a new user of a cached
+     * Drawable. It is invoked by get(String, Retainer) and peek(String,
+     * Retainer) while the entry is pinned: if the entry leaves the cache
+     * concurrently, the eviction listener isn't notified before the
+     * registration completes. It must return quickly and must not access the
+     * cache.
+     */
+    public static interface Retainer {
+        void retain(Drawable drawable);
+    }
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = LruDrawableCache.class.getSimpleName();
+
+    /**
+     * Expiry of an entry that never expires.
+     */
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    /**
+     * Number of buffered reads above which a reader tries to apply them to the
+     * LRU order.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    private final int mMaxSize;
+    private final ConcurrentHashMap<String, Entry> mEntries;
+
+    /*
+     * The following fields are guarded by mLock. mLruOrder is an access-ordered
+     * LinkedHashMap: its first entry is the least recently used one.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> mLruOrder;
+    private int mSize;
+
+    private final ConcurrentLinkedQueue<Entry> mReadBuffer = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger mReadBufferCount = new AtomicInteger();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    private volatile OnEvictionListener mOnEvictionListener;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize The maximum number of bytes the cached Drawables may use
+     */
+    public LruDrawableCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be strictly positive");
+        }
+        mMaxSize = maxSize;
+        mEntries = new ConcurrentHashMap<String, Entry>();
+        mLruOrder = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    public void setOnEvictionListener(OnEvictionListener listener) {
+        mOnEvictionListener = listener;
+    }
+
+    /**
+     * Returns the Drawable cached for the given key or null if there is no such
+     * entry or if it has expired.
+     */
+    public Drawable get(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null || entry.mExpiry <= System.currentTimeMillis()) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        mHitCount.incrementAndGet();
+        mReadBuffer.offer(entry);
+        if (mReadBufferCount.incrementAndGet() > READ_BUFFER_DRAIN_THRESHOLD && mLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                mLock.unlock();
+            }
+        }
+        return entry.mDrawable;
+    }
+
+    /**
+     * Same as get(String) but the given Retainer registers a new user of the
+     * returned Drawable before it may be evicted. The lookup doesn't block
+     * either: an entry that leaves the cache while being retained is looked
+     * up again.
+     */
+    public Drawable get(String key, Retainer retainer) {
+        Entry entry;
+        do {
+            entry = mEntries.get(key);
+            if (entry == null || entry.mExpiry <= System.currentTimeMillis()) {
+                mMissCount.incrementAndGet();
+                return null;
+            }
+        } while (!entry.retain(retainer));
+
+        mHitCount.incrementAndGet();
+        mReadBuffer.offer(entry);
+        if (mReadBufferCount.incrementAndGet() > READ_BUFFER_DRAIN_THRESHOLD && mLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                mLock.unlock();
+            }
+        }
+        return entry.mDrawable;
+    }
+
+    /**
+     * Returns the Drawable cached for the given key even if it has expired.
+     * Contrary to get(), this method neither updates the statistics nor the LRU
+     * order of the cache.
+     */
+    public Drawable peek(String key) {
+        final Entry entry = mEntries.get(key);
+        return (entry == null) ? null : entry.mDrawable;
+    }
+
+    /**
+     * Same as peek(String) but the given Retainer registers a new user of the
+     * returned Drawable before it may be evicted.
+     */
+    public Drawable peek(String key, Retainer retainer) {
+        Entry entry;
+        do {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+        } while (!entry.retain(retainer));
+        return entry.mDrawable;
+    }
+
+    public boolean put(String key, Drawable drawable) {
+        return put(key, drawable, NEVER_EXPIRES);
+    }
+
+    /**
+     * Caches the given Drawable.
+     *
+     * @param key The key of the entry
+     * @param drawable The Drawable to cache
+     * @param expiry The date (in milliseconds since epoch) after which the
+     *            entry is considered as expired or NEVER_EXPIRES
+     * @return true if the Drawable has been cached, false if it is too large
+     *         to fit in the cache
+     */
+    public boolean put(String key, Drawable drawable, long expiry) {
+        final int size = sizeOf(drawable);
+        if (size > mMaxSize) {
+            /*
+             * There is no need to evict the entire cache for a Drawable that
+             * won't fit in it anyway.
+             */
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Drawable too large to be cached (" + size + " bytes) from URL:" + key);
+            }
+            remove(key);
+            return false;
+        }
+
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "Inserting/replacing drawable (" + size + " bytes) from URL:" + key);
+        }
+
+        final Entry entry = new Entry(key, drawable, size, expiry);
+        final Entry previous;
+        ArrayList<Entry> evicted;
+
+        mLock.lock();
+        try {
+            drainReadBuffer();
+            previous = mLruOrder.put(key, entry);
+            mEntries.put(key, entry);
+            mSize += size;
+            if (previous != null) {
+                mSize -= previous.mSize;
+            }
+            evicted = trimToSize();
+        } finally {
+            mLock.unlock();
+        }
+
+        if (previous != null) {
+            notifyRemoved(previous);
+        }
+        notifyEvicted(evicted);
+        return true;
+    }
+
+    public Drawable remove(String key) {
+        final Entry entry;
+        mLock.lock();
+        try {
+            entry = mLruOrder.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            mEntries.remove(key);
+            mSize -= entry.mSize;
+        } finally {
+            mLock.unlock();
+        }
+        notifyRemoved(entry);
+        return entry.mDrawable;
+    }
+
+    /**
+     * Evicts all entries from the cache. The eviction listener is notified for
+     * each of them.
+     */
+    public void evictAll() {
+        final ArrayList<Entry> evicted;
+        mLock.lock();
+        try {
+            evicted = new ArrayList<Entry>(mLruOrder.values());
+            mLruOrder.clear();
+            mEntries.clear();
+            mReadBuffer.clear();
+            mReadBufferCount.set(0);
+            mSize = 0;
+        } finally {
+            mLock.unlock();
+        }
+        mEvictionCount.addAndGet(evicted.size());
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Returns the number of bytes used by the cached Drawables.
+     */
+    public int getSize() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels of the given Drawable. The
+     * real size of the Bitmap is used for BitmapDrawables. Other Drawables are
+     * estimated as an ARGB_8888 Bitmap of their intrinsic size.
+     */
+    protected int sizeOf(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        final int width = drawable.getIntrinsicWidth();
+        final int height = drawable.getIntrinsicHeight();
+        return (width > 0 && height > 0) ? width * height * 4 : 1;
+    }
+
+    /**
+     * Applies buffered reads to the LRU order. Must be called with mLock held.
+     */
+    private void drainReadBuffer() {
+        Entry entry;
+        while ((entry = mReadBuffer.poll()) != null) {
+            mReadBufferCount.decrementAndGet();
+            /*
+             * The lookup marks the entry as the most recently used one. Entries
+             * that have been removed or replaced since they've been read are
+             * simply ignored.
+             */
+            mLruOrder.get(entry.mKey);
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits in its
+     * maximum size. Must be called with mLock held.
+     *
+     * @return The evicted entries or null if none
+     */
+    private ArrayList<Entry> trimToSize() {
+        ArrayList<Entry> evicted = null;
+        final Iterator<Entry> it = mLruOrder.values().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Entry entry = it.next();
+            it.remove();
+            mEntries.remove(entry.mKey);
+            mSize -= entry.mSize;
+            if (evicted == null) {
+                evicted = new ArrayList<Entry>();
+            }
+            evicted.add(entry);
+        }
+        if (evicted != null) {
+            mEvictionCount.addAndGet(evicted.size());
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(ArrayList<Entry> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        final int count = evicted.size();
+        for (int i = 0; i < count; i++) {
+            final Entry entry = evicted.get(i);
+            if (DEBUG_LOGS_ENABLED) {
+                Log.d(LOG_TAG, "Evicting drawable (" + entry.mSize + " bytes) from URL:" + entry.mKey);
+            }
+            notifyRemoved(entry);
+        }
+    }
+
+    private void notifyRemoved(Entry entry) {
+        entry.markRemoved();
+        final OnEvictionListener listener = mOnEvictionListener;
+        if (listener != null) {
+            listener.onDrawableEvicted(entry.mKey, entry.mDrawable);
+        }
+    }
+
+    private static final class Entry {
+
+        /**
+         * Pin count of an entry that has left the cache.
+         */
+        private static final int REMOVED = -1;
+
+        final String mKey;
+        final Drawable mDrawable;
+        final int mSize;
+        final long mExpiry;
+
+        /**
+         * The number of readers retaining the Drawable or REMOVED once the
+         * eviction listener may be notified.
+         */
+        private final AtomicInteger mPinCount = new AtomicInteger();
+
+        Entry(String key, Drawable drawable, int size, long expiry) {
+            mKey = key;
+            mDrawable = drawable;
+            mSize = size;
+            mExpiry = expiry;
+        }
+
+        /**
+         * Pins the entry while the given Retainer registers a new user of the
+         * Drawable. Returns false if the entry has left the cache.
+         */
+        boolean retain(Retainer retainer) {
+            int count;
+            do {
+                count = mPinCount.get();
+                if (count == REMOVED) {
+                    return false;
+                }
+            } while (!mPinCount.compareAndSet(count, count + 1));
+            try {
+                retainer.retain(mDrawable);
+            } finally {
+                mPinCount.decrementAndGet();
+            }
+            return true;
+        }
+
+        /**
+         * Waits for the pending retains to complete and prevents new ones.
+         * Called once the entry has been removed from the cache, before the
+         * eviction listener is notified. Retains are short: spinning is
+         * cheaper than parking.
+         */
+        void markRemoved() {
+            while (mPinCount.get() != REMOVED && !mPinCount.compareAndSet(0, REMOVED)) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+/**
+ * Interface definition of a callback to be invoked when a Drawable request
+ * completes. The callback is invoked on the main thread, once the callbacks of
+ * the request have been notified.
+ *
+ * @author Cyril Mottier
+ */
+public interface MetricsListener {
+
+    /**
+     * Called when a request completed, successfully or not.
+     *
+     * @param metrics The measurements of the request
+     */
+    void onRequestCompleted(RequestMetrics metrics);
+}
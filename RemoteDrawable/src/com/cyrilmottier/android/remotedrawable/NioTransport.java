@@ -0,0 +1,728 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * An HttpTransport fetching the "http://" URLs asynchronously using
+ * non-blocking sockets. All the requests are multiplexed by a Selector on a
+ * single I/O thread. A second thread resolves the host names as name
+ * resolution can't be made asynchronously. The number of concurrent downloads
+ * is therefore not bound to the number of threads anymore. Both threads are
+ * daemon threads and stop once the transport is closed.
+ * <p>
+ * The body of a response is read straight into an array of its announced
+ * length: this array is the buffer later handed to the decoders. Bodies
+ * without a Content-Length (chunked or delimited by the end of the
+ * connection) are accumulated in a growing buffer.
+ * <p>
+ * Each request uses its own connection ("Connection: close"). Redirections to
+ * "http://" URLs are followed. Other URLs ("https://" for instance) are opened
+ * by the blocking HttpTransport.
+ *
+ * @author Cyril Mottier
+ */
+public class NioTransport extends HttpTransport {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = NioTransport.class.getSimpleName();
+
+    private static final String SCHEME = "http:";
+    private static final int DEFAULT_PORT = 80;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Maximum size of the response headers.
+     */
+    private static final int MAX_HEADERS_SIZE = 32 * 1024;
+
+    /**
+     * Maximum time (in milliseconds) between two timeout checks.
+     */
+    private static final long MAX_SELECT_TIMEOUT = 1000;
+
+    private final ExecutorService mResolver = Executors.newSingleThreadExecutor(new DaemonThreadFactory(LOG_TAG + " resolver"));
+
+    /**
+     * Exchanges whose host has been resolved and which wait to be registered
+     * on the selector.
+     */
+    private final ConcurrentLinkedQueue<Exchange> mPendingExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+    /**
+     * Exchanges aborted from other threads.
+     */
+    private final ConcurrentLinkedQueue<Exchange> mAbortedExchanges = new ConcurrentLinkedQueue<Exchange>();
+
+    /**
+     * Exchanges registered on the selector. Only accessed from the I/O thread.
+     */
+    private final ArrayList<Exchange> mActiveExchanges = new ArrayList<Exchange>();
+
+    /**
+     * Only accessed from the I/O thread.
+     */
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Lazily opened by the first fetch.
+     */
+    private volatile Selector mSelector;
+
+    @Override
+    public boolean isAsynchronous(String urlString) {
+        return urlString.regionMatches(true, 0, SCHEME, 0, SCHEME.length());
+    }
+
+    @Override
+    public Response fetch(String urlString, String eTag, String lastModified, RequestMetrics metrics, FetchCallback callback) {
+        if (isClosed()) {
+            throw new IllegalStateException(LOG_TAG + " has been closed");
+        }
+        final Exchange exchange = new Exchange(urlString, eTag, lastModified, metrics, callback);
+        resolve(exchange);
+        return exchange;
+    }
+
+    /**
+     * Resolves the host of the given exchange on the resolver thread and
+     * hands the exchange to the I/O thread.
+     */
+    private void resolve(final Exchange exchange) {
+        try {
+            mResolver.execute(new Runnable() {
+                public void run() {
+                    resolveNow(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The transport has been closed
+            exchange.notifyFailure(closed(exchange));
+        }
+    }
+
+    private void resolveNow(Exchange exchange) {
+        if (exchange.isFinished()) {
+            return;
+        }
+        if (isClosed()) {
+            exchange.notifyFailure(closed(exchange));
+            return;
+        }
+        try {
+            final URL url = new URL(exchange.mUrl);
+            final int port = (url.getPort() != -1) ? url.getPort() : DEFAULT_PORT;
+            exchange.mAddress = new InetSocketAddress(InetAddress.getByName(url.getHost()), port);
+            exchange.mRequest = exchange.buildRequest(url);
+            mPendingExchanges.add(exchange);
+            // Fails if the transport has been closed in the meantime
+            getSelector().wakeup();
+        } catch (IOException e) {
+            exchange.notifyFailure(classify(e, exchange.mUrl));
+        }
+    }
+
+    /**
+     * Closes the transport: the pending exchanges fail and the threads stop.
+     */
+    @Override
+    public void close() {
+        final Selector selector;
+        synchronized (this) {
+            super.close();
+            selector = mSelector;
+        }
+        mResolver.shutdown();
+        if (selector != null) {
+            // The I/O thread fails the remaining exchanges before stopping
+            selector.wakeup();
+        }
+    }
+
+    private static DownloadException closed(Exchange exchange) {
+        return new DownloadException("Transport closed while downloading " + exchange.mUrl, false);
+    }
+
+    /**
+     * Returns the selector, opening it and starting the I/O thread if needed.
+     */
+    private synchronized Selector getSelector() throws IOException {
+        if (isClosed()) {
+            throw new IOException(LOG_TAG + " has been closed");
+        }
+        if (mSelector == null) {
+            mSelector = Selector.open();
+            final Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    loop();
+                }
+            }, LOG_TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return mSelector;
+    }
+
+    /**
+     * The loop of the I/O thread.
+     */
+    private void loop() {
+        final Selector selector = mSelector;
+        while (!isClosed()) {
+            try {
+                registerPendingExchanges(selector);
+                Exchange aborted;
+                while ((aborted = mAbortedExchanges.poll()) != null) {
+                    aborted.fail(new DownloadException("Download aborted at " + aborted.mUrl, false));
+                }
+
+                selector.select(getSelectTimeout());
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Exchange exchange = (Exchange) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            onConnectable(exchange, key);
+                        } else if (key.isWritable()) {
+                            onWritable(exchange, key);
+                        } else if (key.isReadable()) {
+                            onReadable(exchange);
+                        }
+                    } catch (IOException e) {
+                        exchange.fail(classify(e, exchange.mUrl));
+                    }
+                }
+
+                checkTimeouts();
+            } catch (IOException e) {
+                // The selector itself failed
+                e.printStackTrace();
+            }
+        }
+
+        for (int i = mActiveExchanges.size() - 1; i >= 0; i--) {
+            final Exchange exchange = mActiveExchanges.get(i);
+            exchange.fail(closed(exchange));
+        }
+        Exchange exchange;
+        while ((exchange = mPendingExchanges.poll()) != null) {
+            exchange.notifyFailure(closed(exchange));
+        }
+        mAbortedExchanges.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void registerPendingExchanges(Selector selector) {
+        Exchange exchange;
+        while ((exchange = mPendingExchanges.poll()) != null) {
+            if (exchange.isFinished()) {
+                continue;
+            }
+            try {
+                final SocketChannel channel = SocketChannel.open();
+                exchange.mChannel = channel;
+                mActiveExchanges.add(exchange);
+                channel.configureBlocking(false);
+                exchange.mDeadline = SystemClock.uptimeMillis() + getConnectTimeout();
+                if (channel.connect(exchange.mAddress)) {
+                    exchange.onConnected();
+                    channel.register(selector, SelectionKey.OP_WRITE, exchange);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, exchange);
+                }
+            } catch (IOException e) {
+                exchange.fail(classify(e, exchange.mUrl));
+            }
+        }
+    }
+
+    /**
+     * Returns the time to wait for the next I/O event: no longer than the
+     * nearest deadline.
+     */
+    private long getSelectTimeout() {
+        final long now = SystemClock.uptimeMillis();
+        long timeout = MAX_SELECT_TIMEOUT;
+        final int count = mActiveExchanges.size();
+        for (int i = 0; i < count; i++) {
+            timeout = Math.min(timeout, mActiveExchanges.get(i).mDeadline - now);
+        }
+        // 0 would mean "no timeout"
+        return Math.max(timeout, 1);
+    }
+
+    private void checkTimeouts() {
+        final long now = SystemClock.uptimeMillis();
+        for (int i = mActiveExchanges.size() - 1; i >= 0; i--) {
+            final Exchange exchange = mActiveExchanges.get(i);
+            if (now >= exchange.mDeadline) {
+                final String phase = exchange.mConnectedTime == 0 ? "connect" : "read";
+                exchange.fail(classify(new SocketTimeoutException(phase + " timed out"), exchange.mUrl));
+            }
+        }
+    }
+
+    private void onConnectable(Exchange exchange, SelectionKey key) throws IOException {
+        if (exchange.mChannel.finishConnect()) {
+            exchange.onConnected();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void onWritable(Exchange exchange, SelectionKey key) throws IOException {
+        exchange.mChannel.write(exchange.mRequest);
+        if (!exchange.mRequest.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onReadable(Exchange exchange) throws IOException {
+        final ByteBuffer buffer = mReadBuffer;
+        while (exchange.mState != Exchange.STATE_DONE) {
+            buffer.clear();
+            final int count = exchange.mChannel.read(buffer);
+            if (count == 0) {
+                return;
+            }
+            if (count == -1) {
+                exchange.onEndOfStream();
+                break;
+            }
+            exchange.mDeadline = SystemClock.uptimeMillis() + getReadTimeout();
+            buffer.flip();
+            exchange.consume(buffer);
+        }
+
+        final int responseCode = exchange.mResponseCode;
+        if (responseCode == HttpURLConnection.HTTP_OK || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            exchange.complete();
+            return;
+        }
+
+        final String location = exchange.getHeaderField("Location");
+        if (isRedirect(responseCode) && location != null) {
+            final String target = new URL(new URL(exchange.mUrl), location).toString();
+            if (exchange.mRedirectCount < MAX_REDIRECTS && isAsynchronous(target)) {
+                if (DEBUG_LOGS_ENABLED) {
+                    Log.d(LOG_TAG, "Redirected from " + exchange.mUrl + " to " + target);
+                }
+                exchange.close();
+                exchange.restart(target);
+                resolve(exchange);
+                return;
+            }
+        }
+        exchange.fail(unexpectedResponse(responseCode, exchange.mUrl));
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HttpURLConnection.HTTP_MOVED_PERM || responseCode == HttpURLConnection.HTTP_MOVED_TEMP
+                || responseCode == HttpURLConnection.HTTP_SEE_OTHER || responseCode == 307 || responseCode == 308;
+    }
+
+    /**
+     * A request and its response. Except for the abortion, an exchange is
+     * only accessed by one thread at a time: the caller, the resolver thread,
+     * the I/O thread and finally the thread of the callback.
+     */
+    private final class Exchange extends Response {
+
+        static final int STATE_HEADERS = 0;
+        static final int STATE_BODY = 1;
+        static final int STATE_BODY_UNTIL_EOF = 2;
+        static final int STATE_CHUNK_SIZE = 3;
+        static final int STATE_CHUNK_DATA = 4;
+        static final int STATE_CHUNK_END = 5;
+        static final int STATE_TRAILERS = 6;
+        static final int STATE_DONE = 7;
+
+        final String mETag;
+        final String mLastModified;
+        final RequestMetrics mMetrics;
+        final FetchCallback mCallback;
+        final long mStartTime = SystemClock.uptimeMillis();
+        final AtomicBoolean mFinished = new AtomicBoolean();
+
+        String mUrl;
+        int mRedirectCount;
+        InetSocketAddress mAddress;
+        ByteBuffer mRequest;
+        SocketChannel mChannel;
+        long mConnectStartTime = mStartTime;
+        long mConnectedTime;
+        long mHeadersTime;
+        long mDeadline;
+
+        int mState;
+        int mResponseCode = -1;
+        final HashMap<String, String> mHeaders = new HashMap<String, String>();
+        final ByteArrayOutputStream mHeaderBytes = new ByteArrayOutputStream(512);
+        int mHeaderLineLength;
+        final StringBuilder mLine = new StringBuilder();
+        byte[] mBody;
+        int mBodyLength;
+        int mChunkRemaining;
+
+        Exchange(String url, String eTag, String lastModified, RequestMetrics metrics, FetchCallback callback) {
+            mUrl = url;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mMetrics = metrics;
+            mCallback = callback;
+        }
+
+        ByteBuffer buildRequest(URL url) {
+            final StringBuilder sb = new StringBuilder(256);
+            final String path = url.getFile();
+            sb.append("GET ").append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != DEFAULT_PORT) {
+                sb.append(':').append(url.getPort());
+            }
+            sb.append("\r\n");
+            final String userAgent = System.getProperty("http.agent");
+            if (userAgent != null) {
+                sb.append("User-Agent: ").append(userAgent).append("\r\n");
+            }
+            sb.append("Accept-Encoding: identity\r\n");
+            sb.append("Connection: close\r\n");
+            if (mETag != null) {
+                sb.append("If-None-Match: ").append(mETag).append("\r\n");
+            }
+            if (mLastModified != null) {
+                sb.append("If-Modified-Since: ").append(mLastModified).append("\r\n");
+            }
+            sb.append("\r\n");
+
+            // Requests are made of ASCII characters only
+            final int length = sb.length();
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) sb.charAt(i);
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        void onConnected() {
+            mConnectedTime = SystemClock.uptimeMillis();
+            mDeadline = mConnectedTime + getReadTimeout();
+            if (mMetrics != null) {
+                // Includes the name resolution
+                mMetrics.addDuration(RequestMetrics.STAGE_CONNECT, mConnectedTime - mConnectStartTime);
+            }
+        }
+
+        /**
+         * Parses the given received bytes.
+         */
+        void consume(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining() && mState != STATE_DONE) {
+                switch (mState) {
+                    case STATE_HEADERS:
+                        final byte b = buffer.get();
+                        mHeaderBytes.write(b);
+                        if (b == '\n') {
+                            if (mHeaderLineLength == 0) {
+                                // An empty line ends the headers
+                                onHeaders();
+                            }
+                            mHeaderLineLength = 0;
+                        } else if (b != '\r') {
+                            mHeaderLineLength++;
+                        }
+                        if (mHeaderBytes.size() > MAX_HEADERS_SIZE) {
+                            throw new IOException("Response headers too large");
+                        }
+                        break;
+
+                    case STATE_BODY:
+                    case STATE_BODY_UNTIL_EOF:
+                    case STATE_CHUNK_DATA:
+                        int count = buffer.remaining();
+                        if (mState == STATE_BODY) {
+                            count = Math.min(count, mBody.length - mBodyLength);
+                        } else if (mState == STATE_CHUNK_DATA) {
+                            count = Math.min(count, mChunkRemaining);
+                            mChunkRemaining -= count;
+                        }
+                        ensureCapacity(count);
+                        buffer.get(mBody, mBodyLength, count);
+                        mBodyLength += count;
+                        if (mState == STATE_BODY && mBodyLength == mBody.length) {
+                            mState = STATE_DONE;
+                        } else if (mState == STATE_CHUNK_DATA && mChunkRemaining == 0) {
+                            mState = STATE_CHUNK_END;
+                        }
+                        break;
+
+                    default:
+                        // Chunk delimiters and trailers are parsed line by
+                        // line
+                        final char c = (char) (buffer.get() & 0xFF);
+                        if (c != '\n') {
+                            if (mLine.length() > MAX_HEADERS_SIZE) {
+                                throw new IOException("Malformed chunked body");
+                            }
+                            mLine.append(c);
+                            break;
+                        }
+                        final String line = mLine.toString().trim();
+                        mLine.setLength(0);
+                        onLine(line);
+                        break;
+                }
+            }
+        }
+
+        private void onHeaders() throws IOException {
+            final byte[] bytes = mHeaderBytes.toByteArray();
+            mHeaderBytes.reset();
+            final char[] chars = new char[bytes.length];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[i] = (char) (bytes[i] & 0xFF);
+            }
+            final String[] lines = new String(chars).split("\n");
+
+            final String statusLine = lines[0].trim();
+            final int codeStart = statusLine.indexOf(' ') + 1;
+            if (!statusLine.startsWith("HTTP/") || codeStart == 0 || statusLine.length() < codeStart + 3) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            try {
+                mResponseCode = Integer.parseInt(statusLine.substring(codeStart, codeStart + 3));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            if (mResponseCode >= 100 && mResponseCode < 200) {
+                // Interim response: the final one follows
+                return;
+            }
+
+            mHeaders.clear();
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            mHeadersTime = SystemClock.uptimeMillis();
+            mLatency = mHeadersTime - mStartTime;
+            if (mMetrics != null) {
+                mMetrics.addDuration(RequestMetrics.STAGE_FIRST_BYTE, mHeadersTime - mConnectedTime);
+            }
+
+            if (mResponseCode != HttpURLConnection.HTTP_OK) {
+                // Redirections, errors and "304 Not Modified": the body (if
+                // any) isn't needed
+                mBody = new byte[0];
+                mState = STATE_DONE;
+                return;
+            }
+
+            final String transferEncoding = getHeaderField("Transfer-Encoding");
+            final int contentLength = getContentLength();
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+                mBody = new byte[BUFFER_SIZE];
+                mState = STATE_CHUNK_SIZE;
+            } else if (contentLength >= 0) {
+                // The buffer handed to the decoders
+                mBody = new byte[contentLength];
+                mState = (contentLength == 0) ? STATE_DONE : STATE_BODY;
+            } else {
+                mBody = new byte[BUFFER_SIZE];
+                mState = STATE_BODY_UNTIL_EOF;
+            }
+        }
+
+        private void onLine(String line) throws IOException {
+            switch (mState) {
+                case STATE_CHUNK_SIZE:
+                    final int extension = line.indexOf(';');
+                    try {
+                        mChunkRemaining = Integer.parseInt((extension < 0) ? line : line.substring(0, extension).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed chunk size: " + line);
+                    }
+                    if (mChunkRemaining < 0) {
+                        throw new IOException("Malformed chunk size: " + line);
+                    }
+                    mState = (mChunkRemaining == 0) ? STATE_TRAILERS : STATE_CHUNK_DATA;
+                    break;
+
+                case STATE_CHUNK_END:
+                    mState = STATE_CHUNK_SIZE;
+                    break;
+
+                case STATE_TRAILERS:
+                    if (line.length() == 0) {
+                        mState = STATE_DONE;
+                    }
+                    break;
+            }
+        }
+
+        void onEndOfStream() throws IOException {
+            if (mState != STATE_BODY_UNTIL_EOF) {
+                throw new IOException("Unexpected end of stream");
+            }
+            mState = STATE_DONE;
+        }
+
+        private void ensureCapacity(int count) {
+            if (mBodyLength + count > mBody.length) {
+                final byte[] body = new byte[Math.max(mBody.length * 2, mBodyLength + count)];
+                System.arraycopy(mBody, 0, body, 0, mBodyLength);
+                mBody = body;
+            }
+        }
+
+        /**
+         * Prepares the exchange to be sent again to the given URL.
+         */
+        void restart(String url) {
+            mUrl = url;
+            mRedirectCount++;
+            mConnectStartTime = SystemClock.uptimeMillis();
+            mConnectedTime = 0;
+            mState = STATE_HEADERS;
+            mResponseCode = -1;
+            mHeaders.clear();
+            mHeaderBytes.reset();
+            mHeaderLineLength = 0;
+            mBody = null;
+            mBodyLength = 0;
+        }
+
+        /**
+         * Closes the connection. Must be called from the I/O thread.
+         */
+        void close() {
+            mActiveExchanges.remove(this);
+            if (mChannel != null) {
+                try {
+                    // Also cancels the selection key
+                    mChannel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                mChannel = null;
+            }
+        }
+
+        boolean isFinished() {
+            return mFinished.get();
+        }
+
+        void complete() {
+            close();
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            mTransferTime = SystemClock.uptimeMillis() - mHeadersTime;
+            if (mBody.length != mBodyLength) {
+                final byte[] body = new byte[mBodyLength];
+                System.arraycopy(mBody, 0, body, 0, mBodyLength);
+                mBody = body;
+            }
+            mCallback.onFetched(this, mBody);
+        }
+
+        /**
+         * Closes the connection and notifies the failure. Must be called from
+         * the I/O thread.
+         */
+        void fail(DownloadException e) {
+            close();
+            notifyFailure(e);
+        }
+
+        /**
+         * Notifies the failure unless the exchange is already finished.
+         */
+        void notifyFailure(DownloadException e) {
+            if (mFinished.compareAndSet(false, true)) {
+                mCallback.onFetchFailed(e);
+            }
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream((mBody != null) ? mBody : new byte[0], 0, mBodyLength);
+        }
+
+        @Override
+        public void abort() {
+            if (!isFinished()) {
+                mAbortedExchanges.add(this);
+                final Selector selector = mSelector;
+                if (selector != null) {
+                    selector.wakeup();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * A handle on a batch of prefetched URLs returned by
+ * DrawableDownloader.prefetch(Collection, Tier) or
+ * DrawableDownloader.prefetch(Collection, int, int, Transformation[], Tier).
+ * It may be used to follow the progress of the prefetch or to cancel it.
+ *
+ * @author Cyril Mottier
+ */
+public final class PrefetchHandle {
+
+    private final DrawableDownloader mDownloader;
+    final DrawableDownloader.Tier mTier;
+    final int mWidth;
+    final int mHeight;
+    final Transformation[] mTransformations;
+    private final int mRequestedCount;
+
+    /*
+     * The following fields are only modified from the main thread.
+     */
+    final LinkedList<String> mRemaining;
+    int mRunningCount;
+    private volatile int mCompletedCount;
+    private volatile int mFailedCount;
+    private volatile boolean mCancelled;
+
+    PrefetchHandle(DrawableDownloader downloader, Collection<String> urls, int width, int height, Transformation[] transformations,
+            DrawableDownloader.Tier tier) {
+        mDownloader = downloader;
+        mWidth = width;
+        mHeight = height;
+        mTransformations = transformations;
+        mTier = tier;
+        mRemaining = new LinkedList<String>(urls);
+        mRequestedCount = mRemaining.size();
+    }
+
+    /**
+     * Cancels the prefetch. The downloads that haven't started yet are
+     * cancelled unless they have been requested by a client in the meantime.
+     * This method must be called from the main thread.
+     */
+    public void cancel() {
+        if (!mCancelled) {
+            mCancelled = true;
+            mDownloader.cancelPrefetch(this);
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns true once all URLs have been prefetched (successfully or not) or
+     * the prefetch has been cancelled.
+     */
+    public boolean isDone() {
+        return mCancelled || mCompletedCount + mFailedCount == mRequestedCount;
+    }
+
+    /**
+     * Returns the number of URLs given to the prefetch.
+     */
+    public int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * Returns the number of URLs that are available in the target tier.
+     */
+    public int getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    /**
+     * Returns the number of URLs that couldn't be prefetched.
+     */
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    void onCompleted(boolean success) {
+        if (success) {
+            mCompletedCount++;
+        } else {
+            mFailedCount++;
+        }
+    }
+}
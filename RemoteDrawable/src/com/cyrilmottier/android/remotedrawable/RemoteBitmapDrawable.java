@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.graphics.Bitmap;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+/**
+ * A BitmapDrawable knowing whether the image it has been decoded from is
+ * opaque. Decoded images are scaled into ARGB Bitmaps (possibly taken from the
+ * BitmapPool) that always report an alpha channel: BitmapDrawable would
+ * consider them as translucent.
+ *
+ * @author Cyril Mottier
+ */
+final class RemoteBitmapDrawable extends BitmapDrawable {
+
+    private final boolean mOpaque;
+    private RemoteBitmapState mState;
+
+    /**
+     * @param bitmap The decoded Bitmap
+     * @param opaque true if the source image has no alpha channel
+     */
+    RemoteBitmapDrawable(Bitmap bitmap, boolean opaque) {
+        super(bitmap);
+        mOpaque = opaque;
+    }
+
+    boolean isOpaque() {
+        return mOpaque;
+    }
+
+    @Override
+    public int getOpacity() {
+        if (!mOpaque) {
+            return super.getOpacity();
+        }
+        // A color filter may turn opaque pixels into translucent ones
+        if (getBitmap() == null || getPaint().getAlpha() < 0xFF || getPaint().getColorFilter() != null) {
+            return PixelFormat.TRANSLUCENT;
+        }
+        return PixelFormat.OPAQUE;
+    }
+
+    @Override
+    public ConstantState getConstantState() {
+        if (mState == null) {
+            mState = new RemoteBitmapState(super.getConstantState(), getBitmap(), mOpaque);
+        }
+        return mState;
+    }
+
+    /**
+     * Keeps the opacity of the source image when instances are created from
+     * the state. The pixels are shared.
+     */
+    private static final class RemoteBitmapState extends ConstantState {
+
+        private final ConstantState mBitmapState;
+        private final Bitmap mBitmap;
+        private final boolean mOpaque;
+
+        RemoteBitmapState(ConstantState bitmapState, Bitmap bitmap, boolean opaque) {
+            mBitmapState = bitmapState;
+            mBitmap = bitmap;
+            mOpaque = opaque;
+        }
+
+        @Override
+        public Drawable newDrawable() {
+            return new RemoteBitmapDrawable(mBitmap, mOpaque);
+        }
+
+        @Override
+        public int getChangingConfigurations() {
+            return (mBitmapState == null) ? 0 : mBitmapState.getChangingConfigurations();
+        }
+    }
+}
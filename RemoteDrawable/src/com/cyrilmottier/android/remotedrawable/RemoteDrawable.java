@@ -31,16 +31,39 @@ import com.cyrilmottier.android.remotedrawable.util.Config;
  * downloaded asyncronously on the network. The placeholder is display as long
  * as the distant Drawable is not ready. Once the distant Drawable is ready, it
  * replaces the placeholder.
+ * <p>
+ * In order to save memory, the distant Drawable is decoded at the size it is
+ * displayed at. This size may be given at construction time. Otherwise, the
+ * download is started as soon as the RemoteDrawable is given non-empty bounds.
+ * <p>
+ * RemoteDrawables created from the ConstantState of a RemoteDrawable share the
+ * pixels of its downloaded Drawable. The pixels are only released (and their
+ * Bitmap made available for reuse) once no RemoteDrawable displays them
+ * anymore.
+ * <p>
+ * Transformations (see Transformations) may be given to post-process the
+ * distant Drawable. They are applied once, at decoding time, and the result is
+ * cached.
  * 
  * @author cyrilmottier
  */
 public class RemoteDrawable extends Drawable implements DrawableDownloader.Callback, Drawable.Callback {
 
+    /**
+     * Interface definition of a callback to be invoked when the opacity of a
+     * RemoteDrawable changes (typically when the distant Drawable replaces the
+     * placeholder). Views compute whether their background is opaque when it
+     * is set: a View using a RemoteDrawable as background may set it again
+     * to take the new opacity into account.
+     */
+    public static interface OnOpacityChangedListener {
+        void onOpacityChanged(RemoteDrawable drawable, int opacity);
+    }
+
     /*
      * TODO cyril: This sample code as been created quite rapidly to show
      * developers how to create a Drawable. It hasn't been tested at all and
-     * therefore many bugs and not-implemented methods may exists. For instance
-     * it's not working properly during orientation changes.
+     * therefore many bugs and not-implemented methods may exists.
      */
 
     private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
@@ -49,13 +72,226 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
 
     private RemoteState mRemoteState;
     private Drawable mCurrentDrawable;
+    private BitmapHandle mHandle;
     private boolean mMutated;
 
+    private final String mUrl;
+    private final Transformation[] mTransformations;
+    private final Drawable mPlaceholder;
+    private boolean mRequested;
+    private int mRequestedWidth;
+    private int mRequestedHeight;
+    private int mPriority = DrawableDownloader.PRIORITY_VISIBLE;
+    private int mQuality;
+    private int mOpacity = PixelFormat.UNKNOWN;
+    private OnOpacityChangedListener mOnOpacityChangedListener;
+
+    /**
+     * Creates a new RemoteDrawable. The distant Drawable will be downloaded
+     * once the bounds of this RemoteDrawable are known.
+     * 
+     * @param placeholder The Drawable to display while downloading
+     * @param URL The URL of the distant Drawable
+     */
     public RemoteDrawable(Drawable placeholder, String URL) {
-        Drawable d = DrawableDownloader.getInstance().getDrawable(URL, this);
-        mCurrentDrawable = (d == null) ? placeholder : d;
+        this(placeholder, URL, 0, 0, null);
+    }
+
+    /**
+     * Creates a new RemoteDrawable whose distant Drawable is post-processed by
+     * the given transformations. The distant Drawable will be downloaded once
+     * the bounds of this RemoteDrawable are known.
+     * 
+     * @param placeholder The Drawable to display while downloading
+     * @param URL The URL of the distant Drawable
+     * @param transformations The transformations to apply or null
+     */
+    public RemoteDrawable(Drawable placeholder, String URL, Transformation[] transformations) {
+        this(placeholder, URL, 0, 0, transformations);
+    }
+
+    /**
+     * Creates a new RemoteDrawable and immediately starts downloading the
+     * distant Drawable.
+     * 
+     * @param placeholder The Drawable to display while downloading
+     * @param URL The URL of the distant Drawable
+     * @param width The width at which this Drawable will be displayed. The
+     *            distant Drawable will be decoded at that size.
+     * @param height The height at which this Drawable will be displayed. The
+     *            distant Drawable will be decoded at that size.
+     */
+    public RemoteDrawable(Drawable placeholder, String URL, int width, int height) {
+        this(placeholder, URL, width, height, null);
+    }
+
+    /**
+     * Creates a new RemoteDrawable whose distant Drawable is post-processed by
+     * the given transformations and immediately starts downloading it.
+     * 
+     * @param placeholder The Drawable to display while downloading
+     * @param URL The URL of the distant Drawable
+     * @param width The width at which this Drawable will be displayed. The
+     *            distant Drawable will be decoded and transformed at that
+     *            size.
+     * @param height The height at which this Drawable will be displayed. The
+     *            distant Drawable will be decoded and transformed at that
+     *            size.
+     * @param transformations The transformations to apply or null
+     */
+    public RemoteDrawable(Drawable placeholder, String URL, int width, int height, Transformation[] transformations) {
+        mUrl = URL;
+        mTransformations = transformations;
+        mPlaceholder = placeholder;
+        mCurrentDrawable = placeholder;
+        mCurrentDrawable.setCallback(this);
+        mRemoteState = new RemoteState(URL, transformations, placeholder);
+        if (width > 0 || height > 0) {
+            requestDrawable(width, height);
+        }
+    }
+
+    /**
+     * Creates a new RemoteDrawable from the given state. The Drawable shared
+     * by the state (if any and if still alive) is displayed immediately.
+     */
+    private RemoteDrawable(RemoteState state) {
+        mRemoteState = state;
+        mUrl = state.mUrl;
+        mTransformations = state.mTransformations;
+        if (state.mPlaceholderState != null) {
+            mPlaceholder = state.mPlaceholderState.newDrawable();
+        } else {
+            // The placeholder can't be duplicated. Let's share it.
+            mPlaceholder = state.mPlaceholder;
+        }
+        mCurrentDrawable = mPlaceholder;
+        mCurrentDrawable.setCallback(this);
+
+        final BitmapHandle handle = state.mHandle;
+        if (handle != null && setCurrentHandle(handle) && handle.getQuality() == DrawableDownloader.QUALITY_FULL) {
+            // No need to download anything
+            mRequested = true;
+            mRequestedWidth = state.mRequestedWidth;
+            mRequestedHeight = state.mRequestedHeight;
+        } else if (state.mRequestedWidth > 0 || state.mRequestedHeight > 0) {
+            requestDrawable(state.mRequestedWidth, state.mRequestedHeight);
+        }
+    }
+
+    /**
+     * Sets the priority of the download of the distant Drawable. Lists
+     * typically lower the priority of the RemoteDrawables that are scrolled
+     * out of the screen. The priority may be changed as long as the download
+     * hasn't started.
+     * 
+     * @param priority One of DrawableDownloader.PRIORITY_VISIBLE,
+     *            DrawableDownloader.PRIORITY_NORMAL or
+     *            DrawableDownloader.PRIORITY_PREFETCH
+     */
+    public void setPriority(int priority) {
+        if (mPriority != priority) {
+            mPriority = priority;
+            if (mRequested) {
+                DrawableDownloader.getInstance().setPriority(mUrl, mRequestedWidth, mRequestedHeight, mTransformations, priority);
+            }
+        }
+    }
+
+    public void setOnOpacityChangedListener(OnOpacityChangedListener listener) {
+        mOnOpacityChangedListener = listener;
+        mOpacity = getOpacity();
+    }
+
+    private void requestDrawable(int width, int height) {
+        mRequested = true;
+        mRequestedWidth = width;
+        mRequestedHeight = height;
+        mRemoteState.mRequestedWidth = width;
+        mRemoteState.mRequestedHeight = height;
+        Drawable d = DrawableDownloader.getInstance().getDrawable(mUrl, width, height, mPriority, mTransformations, this);
+        if (d != null) {
+            setCurrentHandle(new BitmapHandle(d, DrawableDownloader.QUALITY_FULL));
+        }
+    }
+
+    /**
+     * Releases the distant Drawable and displays the placeholder again. This
+     * method should be called once this RemoteDrawable is not displayed
+     * anymore (when a list item is recycled for instance) so that the memory
+     * used by the distant Drawable can be reused. A pending download of the
+     * distant Drawable is cancelled if no other RemoteDrawable waits for it.
+     * The Drawable is requested again the next time the bounds change.
+     */
+    public void release() {
+        if (mRequested) {
+            // Nothing to cancel if the Drawable has been loaded: the
+            // downloader ignores unknown callbacks
+            DrawableDownloader.getInstance().cancel(mUrl, mRequestedWidth, mRequestedHeight, mTransformations, this);
+            mRequested = false;
+        }
+        if (mHandle != null) {
+            setCurrentHandle(null);
+            invalidateSelf();
+        }
+    }
+
+    /**
+     * Displays the Drawable of the given handle or the placeholder if handle is
+     * null. Returns false if the handle is dead.
+     */
+    private boolean setCurrentHandle(BitmapHandle handle) {
+        final Drawable drawable;
+        if (handle == null) {
+            drawable = mPlaceholder;
+        } else {
+            drawable = handle.acquire();
+            if (drawable == null) {
+                return false;
+            }
+            /*
+             * The instance shares its pixels with the other holders of the
+             * handle but must have its own paint (alpha, color filter, ...).
+             */
+            drawable.mutate();
+            drawable.setAlpha(mRemoteState.mAlpha);
+            drawable.setColorFilter(mRemoteState.mColorFilter);
+            drawable.setDither(mRemoteState.mDither);
+            drawable.setFilterBitmap(mRemoteState.mFilter);
+        }
+
+        if (mHandle != null) {
+            mHandle.release();
+        }
+        mHandle = handle;
+        mQuality = (handle == null) ? 0 : handle.getQuality();
+
+        // Share the best Drawable with the RemoteDrawables created from the
+        // state
+        final BitmapHandle shared = mRemoteState.mHandle;
+        if (handle != null && (shared == null || shared.isDead() || handle.getQuality() >= shared.getQuality())) {
+            mRemoteState.mHandle = handle;
+        }
+
+        drawable.setBounds(mCurrentDrawable.getBounds());
+        mCurrentDrawable.setCallback(null);
+        mCurrentDrawable = drawable;
         mCurrentDrawable.setCallback(this);
-        mRemoteState = new RemoteState();
+        checkOpacity();
+        return true;
+    }
+
+    /**
+     * Notifies the listener if the opacity changed since the last call.
+     */
+    private void checkOpacity() {
+        if (mOnOpacityChangedListener != null) {
+            final int opacity = getOpacity();
+            if (opacity != mOpacity) {
+                mOpacity = opacity;
+                mOnOpacityChangedListener.onOpacityChanged(this, opacity);
+            }
+        }
     }
 
     @Override
@@ -72,6 +308,7 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
             if (mCurrentDrawable != null) {
                 mCurrentDrawable.setAlpha(alpha);
             }
+            checkOpacity();
         }
     }
 
@@ -82,6 +319,8 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
             if (mCurrentDrawable != null) {
                 mCurrentDrawable.setColorFilter(cf);
             }
+            // A color filter makes a RemoteBitmapDrawable translucent
+            checkOpacity();
         }
     }
 
@@ -115,6 +354,9 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
         if (mCurrentDrawable != null) {
             mCurrentDrawable.setBounds(bounds);
         }
+        if (!mRequested && !bounds.isEmpty()) {
+            requestDrawable(bounds.width(), bounds.height());
+        }
     }
 
     @Override
@@ -164,11 +406,11 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
     @Override
     public int getOpacity() {
         /*
-         * Here PixelFormat.TRANSPARENT is returned because the getOpacity()
-         * method has to be as conservative as possible. Indeed, we don't know
-         * the opacity of the remote Drawable ...
+         * The opacity is the one of the Drawable currently displayed. The
+         * distant Drawable knows whether the image it has been decoded from is
+         * opaque.
          */
-        return PixelFormat.TRANSPARENT;
+        return (mCurrentDrawable != null) ? mCurrentDrawable.getOpacity() : PixelFormat.TRANSPARENT;
     }
 
     @Override
@@ -193,6 +435,19 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
 
     final static class RemoteState extends Drawable.ConstantState {
 
+        final String mUrl;
+        final Transformation[] mTransformations;
+        final Drawable mPlaceholder;
+        final Drawable.ConstantState mPlaceholderState;
+        int mRequestedWidth;
+        int mRequestedHeight;
+
+        /**
+         * The best Drawable displayed by a RemoteDrawable using this state.
+         * It may be dead.
+         */
+        BitmapHandle mHandle;
+
         int mAlpha;
         ColorFilter mColorFilter;
         boolean mDither;
@@ -200,7 +455,11 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
 
         int mChangingConfigurations;
 
-        public RemoteState() {
+        public RemoteState(String url, Transformation[] transformations, Drawable placeholder) {
+            mUrl = url;
+            mTransformations = transformations;
+            mPlaceholder = placeholder;
+            mPlaceholderState = placeholder.getConstantState();
             mAlpha = 0xFF;
             mColorFilter = null;
             mDither = true;
@@ -208,6 +467,13 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
         }
 
         public RemoteState(RemoteState state) {
+            mUrl = state.mUrl;
+            mTransformations = state.mTransformations;
+            mPlaceholder = state.mPlaceholder;
+            mPlaceholderState = state.mPlaceholderState;
+            mRequestedWidth = state.mRequestedWidth;
+            mRequestedHeight = state.mRequestedHeight;
+            mHandle = state.mHandle;
             mAlpha = state.mAlpha;
             mColorFilter = state.mColorFilter;
             mDither = state.mDither;
@@ -222,9 +488,7 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
 
         @Override
         public Drawable newDrawable() {
-            // TODO cyril: Should return a Drawable that is a copy of the
-            // current Drawable (same placeholder as well as URL)
-            return null;
+            return new RemoteDrawable(this);
         }
 
     }
@@ -242,13 +506,26 @@ public class RemoteDrawable extends Drawable implements DrawableDownloader.Callb
         if (DEBUG_LOGS_ENABLED) {
             Log.d(LOG_TAG, "Bounds are : " + bounds);
         }
-        drawable.setBounds(mCurrentDrawable.getBounds());
-        mCurrentDrawable = drawable;
+        setCurrentHandle(new BitmapHandle(drawable, DrawableDownloader.QUALITY_FULL));
+        invalidateSelf();
+    }
+
+    public void onDrawablePreviewLoaded(String urlString, Drawable preview, int quality) {
+        // Previews may arrive late: never replace a better Drawable
+        if (quality <= mQuality) {
+            return;
+        }
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, "onDrawablePreviewLoaded: " + urlString + " (quality " + quality + ")");
+        }
+        setCurrentHandle(new BitmapHandle(preview, quality));
         invalidateSelf();
     }
 
     public void invalidateDrawable(Drawable who) {
         if (who == mCurrentDrawable) {
+            // An animated placeholder may change its opacity
+            checkOpacity();
             invalidateSelf();
         }
     }
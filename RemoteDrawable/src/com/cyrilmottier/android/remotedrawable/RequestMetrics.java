@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+/**
+ * The measurements of a single Drawable request: the time spent in each stage
+ * of the pipeline, the number of bytes transferred and the cache tier that
+ * served the request. Durations are expressed in milliseconds. A stage the
+ * request didn't go through has a duration of 0.
+ * <p>
+ * RequestMetrics are only created when a MetricsListener has been set on the
+ * DrawableDownloader.
+ *
+ * @author Cyril Mottier
+ */
+public final class RequestMetrics {
+
+    /**
+     * Time spent waiting for a download thread (accumulated over retries).
+     */
+    public static final int STAGE_QUEUE_WAIT = 0;
+
+    /**
+     * Time spent establishing the connection.
+     */
+    public static final int STAGE_CONNECT = 1;
+
+    /**
+     * Time between the connection and the reception of the response headers.
+     */
+    public static final int STAGE_FIRST_BYTE = 2;
+
+    /**
+     * Time spent reading the response body.
+     */
+    public static final int STAGE_TRANSFER = 3;
+
+    /**
+     * Time spent decoding the image.
+     */
+    public static final int STAGE_DECODE = 4;
+
+    /**
+     * Time spent storing the result in the disk and memory caches.
+     */
+    public static final int STAGE_CACHE_INSERT = 5;
+
+    /**
+     * Time between the end of the download and the notification of the
+     * callbacks on the main thread.
+     */
+    public static final int STAGE_DELIVERY = 6;
+
+    public static final int STAGE_COUNT = 7;
+
+    /**
+     * The request failed.
+     */
+    public static final int TIER_NONE = 0;
+
+    /**
+     * The request has been served by the memory cache.
+     */
+    public static final int TIER_MEMORY = 1;
+
+    /**
+     * The request has been served by the disk cache.
+     */
+    public static final int TIER_DISK = 2;
+
+    /**
+     * The request has been served by the disk cache after a successful
+     * revalidation ("304 Not Modified").
+     */
+    public static final int TIER_REVALIDATED = 3;
+
+    /**
+     * The request has been served by the network.
+     */
+    public static final int TIER_NETWORK = 4;
+
+    public static final int TIER_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "queue", "connect", "first byte", "transfer", "decode", "cache insert", "delivery"
+    };
+
+    private static final String[] TIER_NAMES = {
+            "none", "memory", "disk", "revalidated", "network"
+    };
+
+    final String mUrl;
+    final long[] mDurations = new long[STAGE_COUNT];
+    int mTier = TIER_NONE;
+    long mByteCount;
+    int mAttemptCount;
+
+    RequestMetrics(String url) {
+        mUrl = url;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Returns the time (in milliseconds) spent in the given stage.
+     *
+     * @param stage One of the STAGE_* constants
+     */
+    public long getDuration(int stage) {
+        return mDurations[stage];
+    }
+
+    /**
+     * Returns the total time (in milliseconds) of the request.
+     */
+    public long getTotalDuration() {
+        long total = 0;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            total += mDurations[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the tier that served the request (one of the TIER_* constants).
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    public boolean isSuccessful() {
+        return mTier != TIER_NONE;
+    }
+
+    /**
+     * Returns the number of bytes received from the network.
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Returns the number of times the download has been executed (1 unless it
+     * has been retried). Requests served by the memory cache have no attempt.
+     */
+    public int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    void addDuration(int stage, long duration) {
+        mDurations[stage] += duration;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public static String getTierName(int tier) {
+        return TIER_NAMES[tier];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(mUrl).append(" [").append(TIER_NAMES[mTier]).append(", ").append(mByteCount).append(" bytes");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sb.append(", ").append(STAGE_NAMES[i]).append('=').append(mDurations[i]).append("ms");
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * A UrlNormalizer applying the rules that never change the designated
+ * resource:
+ * <ul>
+ * <li>the scheme and the host are lower-cased,</li>
+ * <li>the default port of the scheme is removed,</li>
+ * <li>the fragment is removed,</li>
+ * <li>the query parameters declared as ignored (tracking parameters for
+ * instance) are removed.</li>
+ * </ul>
+ * Ignored parameters must be declared before the normalizer is used.
+ *
+ * @author Cyril Mottier
+ */
+public class StandardUrlNormalizer implements UrlNormalizer {
+
+    private final HashSet<String> mIgnoredParameters = new HashSet<String>();
+    private final ArrayList<String> mIgnoredParameterPrefixes = new ArrayList<String>();
+
+    /**
+     * Removes the query parameter with the given name from the URLs.
+     */
+    public StandardUrlNormalizer addIgnoredParameter(String name) {
+        mIgnoredParameters.add(name);
+        return this;
+    }
+
+    /**
+     * Removes the query parameters whose name starts with the given prefix
+     * ("utm_" for instance) from the URLs.
+     */
+    public StandardUrlNormalizer addIgnoredParameterPrefix(String prefix) {
+        mIgnoredParameterPrefixes.add(prefix);
+        return this;
+    }
+
+    public String normalize(String urlString) {
+        final int schemeEnd = urlString.indexOf("://");
+        if (schemeEnd <= 0) {
+            return urlString;
+        }
+
+        // Fragments are never sent to the server
+        int end = urlString.indexOf('#');
+        if (end < 0) {
+            end = urlString.length();
+        }
+
+        final int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < end && urlString.charAt(authorityEnd) != '/' && urlString.charAt(authorityEnd) != '?') {
+            authorityEnd++;
+        }
+
+        final String scheme = urlString.substring(0, schemeEnd).toLowerCase(Locale.US);
+        String authority = urlString.substring(authorityStart, authorityEnd);
+        // Only the host is case-insensitive: user info is kept as is
+        final int hostStart = authority.lastIndexOf('@') + 1;
+        authority = authority.substring(0, hostStart) + authority.substring(hostStart).toLowerCase(Locale.US);
+        if (("http".equals(scheme) && authority.endsWith(":80")) || ("https".equals(scheme) && authority.endsWith(":443"))) {
+            authority = authority.substring(0, authority.lastIndexOf(':'));
+        }
+
+        final StringBuilder builder = new StringBuilder(end);
+        builder.append(scheme).append("://").append(authority);
+
+        final int queryStart = urlString.indexOf('?', authorityEnd);
+        if (queryStart < 0 || queryStart >= end) {
+            builder.append(urlString, authorityEnd, end);
+            return builder.toString();
+        }
+
+        builder.append(urlString, authorityEnd, queryStart);
+        char separator = '?';
+        int parameterStart = queryStart + 1;
+        while (parameterStart < end) {
+            int parameterEnd = urlString.indexOf('&', parameterStart);
+            if (parameterEnd < 0 || parameterEnd > end) {
+                parameterEnd = end;
+            }
+            if (parameterEnd > parameterStart && !isIgnored(urlString, parameterStart, parameterEnd)) {
+                builder.append(separator).append(urlString, parameterStart, parameterEnd);
+                separator = '&';
+            }
+            parameterStart = parameterEnd + 1;
+        }
+        return builder.toString();
+    }
+
+    private boolean isIgnored(String urlString, int parameterStart, int parameterEnd) {
+        int nameEnd = urlString.indexOf('=', parameterStart);
+        if (nameEnd < 0 || nameEnd > parameterEnd) {
+            nameEnd = parameterEnd;
+        }
+        final String name = urlString.substring(parameterStart, nameEnd);
+        if (mIgnoredParameters.contains(name)) {
+            return true;
+        }
+        final int count = mIgnoredParameterPrefixes.size();
+        for (int i = 0; i < count; i++) {
+            if (name.startsWith(mIgnoredParameterPrefixes.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
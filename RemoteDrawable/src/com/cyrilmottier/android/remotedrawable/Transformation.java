@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.graphics.Bitmap;
+
+/**
+ * A post-processing step (crop, rounded corners, ...) applied to a decoded
+ * Bitmap. Transformations are executed once, on the decode threads, and the
+ * transformed Bitmap is cached: drawing the resulting Drawable only blits its
+ * pixels.
+ * <p>
+ * Implementations must be thread-safe and deterministic: the key of a
+ * transformation is part of the cache keys, two transformations with the same
+ * key must produce the same pixels.
+ *
+ * @author Cyril Mottier
+ */
+public interface Transformation {
+
+    /**
+     * Returns a key identifying the transformation and its parameters
+     * ("roundCorners(8.0)" for instance).
+     */
+    String getKey();
+
+    /**
+     * Transforms the given Bitmap.
+     *
+     * @param source The Bitmap to transform. It must not be modified: it is
+     *            pooled or recycled by the caller if another Bitmap is
+     *            returned.
+     * @param width The width at which the Drawable has been requested or 0 if
+     *            unknown
+     * @param height The height at which the Drawable has been requested or 0
+     *            if unknown
+     * @param pool The pool in which the returned Bitmap may be taken
+     * @return The transformed Bitmap (or source if nothing has to be done)
+     */
+    Bitmap transform(Bitmap source, int width, int height, BitmapPool pool);
+
+    /**
+     * Returns true if the Bitmap transformed from an opaque image is opaque.
+     */
+    boolean preservesOpacity();
+}
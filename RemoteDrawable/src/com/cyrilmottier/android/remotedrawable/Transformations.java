@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Factory of the common Transformations.
+ *
+ * @author Cyril Mottier
+ */
+public final class Transformations {
+
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+    private Transformations() {
+    }
+
+    /**
+     * Returns a Transformation scaling the Bitmaps to the given size. The
+     * aspect ratio isn't kept.
+     */
+    public static Transformation resize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        return new Resize(width, height);
+    }
+
+    /**
+     * Returns a Transformation cropping the center of the Bitmaps to the aspect
+     * ratio of the requested size and scaling it to that size.
+     */
+    public static Transformation centerCrop() {
+        return CenterCrop.INSTANCE;
+    }
+
+    /**
+     * Returns a Transformation rounding the corners of the Bitmaps.
+     *
+     * @param radius The radius (in pixels) of the corners
+     */
+    public static Transformation roundCorners(float radius) {
+        return new RoundCorners(radius);
+    }
+
+    /**
+     * Returns a Bitmap with the given size, taken from the pool if possible.
+     * The returned Bitmap is transparent.
+     */
+    private static Bitmap obtain(BitmapPool pool, int width, int height) {
+        Bitmap bitmap = (pool == null) ? null : pool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        new Canvas(bitmap).drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        return bitmap;
+    }
+
+    private static Bitmap scale(Bitmap source, Rect sourceRect, int width, int height, BitmapPool pool) {
+        final Bitmap result = obtain(pool, width, height);
+        new Canvas(result).drawBitmap(source, sourceRect, new Rect(0, 0, width, height), SCALE_PAINT);
+        return result;
+    }
+
+    private static final class Resize implements Transformation {
+
+        private final int mWidth;
+        private final int mHeight;
+
+        Resize(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public String getKey() {
+            return "resize(" + mWidth + "x" + mHeight + ")";
+        }
+
+        public Bitmap transform(Bitmap source, int width, int height, BitmapPool pool) {
+            if (source.getWidth() == mWidth && source.getHeight() == mHeight) {
+                return source;
+            }
+            return scale(source, null, mWidth, mHeight, pool);
+        }
+
+        public boolean preservesOpacity() {
+            return true;
+        }
+    }
+
+    private static final class CenterCrop implements Transformation {
+
+        static final CenterCrop INSTANCE = new CenterCrop();
+
+        public String getKey() {
+            return "centerCrop";
+        }
+
+        public Bitmap transform(Bitmap source, int width, int height, BitmapPool pool) {
+            final int sourceWidth = source.getWidth();
+            final int sourceHeight = source.getHeight();
+            if (width <= 0 || height <= 0 || (sourceWidth == width && sourceHeight == height)) {
+                // Without a complete requested size, the aspect ratio of the
+                // image is the one it is displayed at
+                return source;
+            }
+
+            final Rect sourceRect;
+            if ((long) sourceWidth * height > (long) sourceHeight * width) {
+                final int cropWidth = (int) ((long) sourceHeight * width / height);
+                final int left = (sourceWidth - cropWidth) / 2;
+                sourceRect = new Rect(left, 0, left + cropWidth, sourceHeight);
+            } else {
+                final int cropHeight = (int) ((long) sourceWidth * height / width);
+                final int top = (sourceHeight - cropHeight) / 2;
+                sourceRect = new Rect(0, top, sourceWidth, top + cropHeight);
+            }
+            return scale(source, sourceRect, width, height, pool);
+        }
+
+        public boolean preservesOpacity() {
+            return true;
+        }
+    }
+
+    private static final class RoundCorners implements Transformation {
+
+        private final float mRadius;
+
+        RoundCorners(float radius) {
+            mRadius = radius;
+        }
+
+        public String getKey() {
+            return "roundCorners(" + mRadius + ")";
+        }
+
+        public Bitmap transform(Bitmap source, int width, int height, BitmapPool pool) {
+            final int sourceWidth = source.getWidth();
+            final int sourceHeight = source.getHeight();
+            final Bitmap result = obtain(pool, sourceWidth, sourceHeight);
+
+            final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+            paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+            new Canvas(result).drawRoundRect(new RectF(0, 0, sourceWidth, sourceHeight), mRadius, mRadius, paint);
+            return result;
+        }
+
+        public boolean preservesOpacity() {
+            // The corners are transparent
+            return false;
+        }
+    }
+}
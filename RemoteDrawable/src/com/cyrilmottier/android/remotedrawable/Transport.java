@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cyrilmottier.android.remotedrawable.util.Config;
+
+/**
+ * Fetches the bytes of the Drawables downloaded by the DrawableDownloader. A
+ * transport may be blocking (each request occupies the calling thread until
+ * its response has been read) or asynchronous for some URLs (the requests are
+ * multiplexed on the transport's own threads and their bodies are delivered to
+ * a FetchCallback).
+ * <p>
+ * The transport also defines the timeouts and the retry policy of the
+ * downloads: failures are classified as retryable or permanent and retryable
+ * downloads are delayed using a bounded exponential backoff with jitter.
+ * <p>
+ * A transport may own threads: it must be closed once it isn't used anymore.
+ *
+ * @author Cyril Mottier
+ */
+public abstract class Transport {
+
+    private static final boolean DEBUG_LOGS_FILE_ENABLED = true;
+    private static final boolean DEBUG_LOGS_ENABLED = DEBUG_LOGS_FILE_ENABLED && Config.DEBUG_LOGS_PROJECT_ENABLED;
+    private static final String LOG_TAG = Transport.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT = 15 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_BASE_BACKOFF = 500;
+    public static final long DEFAULT_MAX_BACKOFF = 16 * 1000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Interface definition of the callback receiving the result of an
+     * asynchronous fetch. It is invoked on a thread of the transport and must
+     * return quickly: the bytes must be processed on another thread.
+     */
+    public static interface FetchCallback {
+
+        /**
+         * Invoked once a "200 OK" or a "304 Not Modified" response has been
+         * entirely received.
+         *
+         * @param response The response (its headers and timings)
+         * @param body The body of the response. It is empty for a "304 Not
+         *            Modified" response.
+         */
+        void onFetched(Response response, byte[] body);
+
+        /**
+         * Invoked when the fetch fails, when the response has another status
+         * or when the fetch has been aborted.
+         */
+        void onFetchFailed(DownloadException e);
+    }
+
+    /**
+     * A response returned (or being fetched) by a transport.
+     */
+    public static abstract class Response {
+
+        /**
+         * The time (in milliseconds) between the start of the request and the
+         * reception of the response headers or -1 if unknown.
+         */
+        protected long mLatency = -1;
+
+        /**
+         * The time (in milliseconds) spent receiving the body or -1 if
+         * unknown.
+         */
+        protected long mTransferTime = -1;
+
+        public abstract int getResponseCode();
+
+        /**
+         * Returns the value of the header with the given (case-insensitive)
+         * name or null.
+         */
+        public abstract String getHeaderField(String name);
+
+        /**
+         * Returns the body of the response. Only responses returned by
+         * Transport.open() have to be read. The stream must be closed.
+         */
+        public abstract InputStream getInputStream() throws IOException;
+
+        /**
+         * Aborts the request: a blocked read fails or the FetchCallback is
+         * notified of the failure. May be called from any thread. Does
+         * nothing once the response has been entirely received.
+         */
+        public abstract void abort();
+
+        /**
+         * Returns the length of the body or -1 if unknown.
+         */
+        public int getContentLength() {
+            return getHeaderFieldInt("Content-Length", -1);
+        }
+
+        /**
+         * Returns the value of the given header parsed as an HTTP date (in
+         * milliseconds since epoch) or the given default value if the header
+         * is missing or malformed.
+         */
+        public long getHeaderFieldDate(String name, long defaultValue) {
+            return parseDate(getHeaderField(name), defaultValue);
+        }
+
+        /**
+         * Returns the value of the given header parsed as an integer or the
+         * given default value if the header is missing or malformed.
+         */
+        public int getHeaderFieldInt(String name, int defaultValue) {
+            final String value = getHeaderField(name);
+            if (value != null) {
+                try {
+                    return Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    // Malformed integer
+                }
+            }
+            return defaultValue;
+        }
+
+        public long getLatency() {
+            return mLatency;
+        }
+
+        public long getTransferTime() {
+            return mTransferTime;
+        }
+    }
+
+    private final Random mRandom = new Random();
+
+    private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private volatile long mBaseBackoff = DEFAULT_BASE_BACKOFF;
+    private volatile long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+
+    /**
+     * Executes the default asynchronous fetches. Lazily created. Both fields
+     * are guarded by the Transport instance.
+     */
+    private ExecutorService mFetchExecutor;
+    private boolean mClosed;
+
+    /**
+     * Sets the timeouts of the requests.
+     *
+     * @param connectTimeout The maximum time (in milliseconds) to wait for the
+     *            connection to be established
+     * @param readTimeout The maximum time (in milliseconds) to wait for data
+     *            once the connection has been established
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * Sets the retry policy of the downloads.
+     *
+     * @param maxRetries The maximum number of times a download is retried
+     *            after a retryable failure
+     * @param baseBackoff The delay (in milliseconds) before the first retry.
+     *            The delay doubles at each retry.
+     * @param maxBackoff The maximum delay (in milliseconds) between two
+     *            attempts
+     */
+    public void setRetryPolicy(int maxRetries, long baseBackoff, long maxBackoff) {
+        mMaxRetries = maxRetries;
+        mBaseBackoff = baseBackoff;
+        mMaxBackoff = maxBackoff;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * Sends a request for the given URL and waits for the response. The
+     * request is conditional if a validator is given. The connect and time to
+     * first byte durations are recorded in the given metrics (if not null).
+     *
+     * @param urlString The URL to request
+     * @param eTag The entity tag of the cached response or null
+     * @param lastModified The last modification date of the cached response
+     *            or null
+     * @param metrics The metrics of the request or null
+     * @return A response which is either a "200 OK" or a "304 Not Modified"
+     * @throws DownloadException If the request fails or if the response has
+     *             another status
+     */
+    public abstract Response open(String urlString, String eTag, String lastModified, RequestMetrics metrics) throws DownloadException;
+
+    /**
+     * Returns true if the given URL is fetched asynchronously using
+     * fetch() rather than open(). Returns false by default.
+     */
+    public boolean isAsynchronous(String urlString) {
+        return false;
+    }
+
+    /**
+     * Starts fetching the given URL without blocking the calling thread. Only
+     * called for the URLs this transport fetches asynchronously. The
+     * parameters are the ones of open().
+     * <p>
+     * By default, the request is sent using open() and its body is read on a
+     * thread of the transport. The number of threads isn't bounded: the
+     * number of concurrent requests is bounded by the caller. Transports
+     * multiplexing their requests override this method.
+     *
+     * @param callback The callback to notify once the fetch is over
+     * @return The response being fetched. It may only be used to abort the
+     *         request.
+     */
+    public Response fetch(String urlString, String eTag, String lastModified, RequestMetrics metrics, FetchCallback callback) {
+        final BlockingFetch fetch = new BlockingFetch(urlString, eTag, lastModified, metrics, callback);
+        getFetchExecutor().execute(fetch);
+        return fetch;
+    }
+
+    private synchronized ExecutorService getFetchExecutor() {
+        if (mClosed) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has been closed");
+        }
+        if (mFetchExecutor == null) {
+            mFetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(LOG_TAG));
+        }
+        return mFetchExecutor;
+    }
+
+    /**
+     * Releases the threads of this transport once the running asynchronous
+     * fetches complete. The transport can't fetch asynchronously anymore once
+     * closed: fetch() throws an exception.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mFetchExecutor != null) {
+            mFetchExecutor.shutdown();
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the delay to wait before retrying a download. The delay grows
+     * exponentially with the number of failed attempts. Only half of it is
+     * fixed, the other half is random so that the clients of an overloaded
+     * server don't retry all at once.
+     *
+     * @param attempt The number of failed attempts (starting at 1)
+     */
+    public long getRetryDelay(int attempt) {
+        long maxDelay = mBaseBackoff;
+        for (int i = 1; i < attempt && maxDelay < mMaxBackoff; i++) {
+            maxDelay *= 2;
+        }
+        maxDelay = Math.min(maxDelay, mMaxBackoff);
+        synchronized (mRandom) {
+            return maxDelay / 2 + (long) (mRandom.nextDouble() * (maxDelay / 2));
+        }
+    }
+
+    /**
+     * Converts the given failure into a DownloadException telling whether the
+     * download may be retried.
+     */
+    public static DownloadException classify(IOException e, String urlString) {
+        if (e instanceof DownloadException) {
+            return (DownloadException) e;
+        }
+
+        /*
+         * FileNotFoundException is thrown when the resource doesn't exist
+         * (including "404 Not Found" responses). All other I/O failures
+         * (timeouts, resets, unknown hosts while the network is down, ...) are
+         * considered as transient.
+         */
+        final boolean retryable = !(e instanceof FileNotFoundException) && !(e instanceof MalformedURLException);
+        if (DEBUG_LOGS_ENABLED) {
+            Log.d(LOG_TAG, (retryable ? "Retryable" : "Permanent") + " failure at " + urlString + ": " + e);
+        }
+        return new DownloadException("Unable to download " + urlString, retryable, e);
+    }
+
+    /**
+     * Parses the given HTTP date. Returns the date in milliseconds since epoch
+     * or the given default value if the date is null or malformed.
+     */
+    @SuppressWarnings("deprecation")
+    static long parseDate(String date, long defaultValue) {
+        if (date != null) {
+            try {
+                // Same parser as URLConnection.getHeaderFieldDate()
+                return Date.parse(date);
+            } catch (IllegalArgumentException e) {
+                // Malformed date
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Creates the threads of a transport. They are daemon threads so that a
+     * transport that hasn't been closed doesn't prevent the process from
+     * exiting.
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        DaemonThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, mName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A fetch executed on a thread of the transport using the blocking
+     * open(). It delegates to the opened response once available.
+     */
+    private final class BlockingFetch extends Response implements Runnable {
+
+        private final String mUrl;
+        private final String mETag;
+        private final String mLastModified;
+        private final RequestMetrics mMetrics;
+        private final FetchCallback mCallback;
+        private volatile Response mResponse;
+        private volatile boolean mAborted;
+
+        BlockingFetch(String url, String eTag, String lastModified, RequestMetrics metrics, FetchCallback callback) {
+            mUrl = url;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mMetrics = metrics;
+            mCallback = callback;
+        }
+
+        public void run() {
+            final Response response;
+            final byte[] body;
+            try {
+                checkAborted();
+                final long start = SystemClock.uptimeMillis();
+                response = open(mUrl, mETag, mLastModified, mMetrics);
+                mResponse = response;
+                response.mLatency = SystemClock.uptimeMillis() - start;
+                if (mAborted) {
+                    response.abort();
+                }
+                final long transferStart = SystemClock.uptimeMillis();
+                body = readBody(response);
+                response.mTransferTime = SystemClock.uptimeMillis() - transferStart;
+            } catch (IOException e) {
+                mCallback.onFetchFailed(mAborted ? aborted() : classify(e, mUrl));
+                return;
+            }
+            mCallback.onFetched(response, body);
+        }
+
+        private byte[] readBody(Response response) throws IOException {
+            final InputStream is = response.getInputStream();
+            try {
+                if (response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return new byte[0];
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                    checkAborted();
+                }
+                return out.toByteArray();
+            } finally {
+                is.close();
+            }
+        }
+
+        private void checkAborted() throws DownloadException {
+            if (mAborted) {
+                throw aborted();
+            }
+        }
+
+        private DownloadException aborted() {
+            return new DownloadException("Download aborted at " + mUrl, false);
+        }
+
+        @Override
+        public int getResponseCode() {
+            final Response response = mResponse;
+            return (response != null) ? response.getResponseCode() : -1;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            final Response response = mResponse;
+            return (response != null) ? response.getHeaderField(name) : null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("The body of " + mUrl + " is delivered to the FetchCallback");
+        }
+
+        @Override
+        public void abort() {
+            mAborted = true;
+            final Response response = mResponse;
+            if (response != null) {
+                response.abort();
+            }
+        }
+    }
+
+    /**
+     * Returns the exception signaling an unexpected response code.
+     */
+    static DownloadException unexpectedResponse(int responseCode, String urlString) {
+        final boolean retryable = responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || responseCode == HTTP_TOO_MANY_REQUESTS;
+        return new DownloadException("Unexpected response code " + responseCode + " at " + urlString, retryable, responseCode);
+    }
+}
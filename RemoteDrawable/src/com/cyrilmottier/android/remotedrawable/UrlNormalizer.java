@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+/**
+ * Rewrites the requested URLs before they are used as cache keys and
+ * downloaded. Equivalent URLs must be normalized to the same URL so that they
+ * are only downloaded once. The normalized URL must designate the same
+ * resource as the original one.
+ *
+ * @author Cyril Mottier
+ */
+public interface UrlNormalizer {
+
+    /**
+     * Returns the normalized form of the given URL. Implementations must be
+     * thread-safe and idempotent.
+     */
+    String normalize(String urlString);
+}
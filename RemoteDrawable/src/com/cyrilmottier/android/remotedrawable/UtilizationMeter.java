@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Measures the part of the time the threads of a pipeline stage spend
+ * executing tasks. The busy time of a task is accounted once the task
+ * completes.
+ *
+ * @author Cyril Mottier
+ */
+final class UtilizationMeter {
+
+    private final AtomicLong mBusyTime = new AtomicLong();
+
+    /*
+     * The following fields are guarded by the UtilizationMeter instance.
+     */
+    private long mSampleTime = SystemClock.uptimeMillis();
+    private long mSampleBusyTime;
+    private float mUtilization;
+
+    /**
+     * Records the execution of a task. May be called from any thread.
+     *
+     * @param busyTime The time (in milliseconds) the task has been running
+     */
+    void onTaskCompleted(long busyTime) {
+        mBusyTime.addAndGet(busyTime);
+    }
+
+    /**
+     * Returns the total time (in milliseconds) the threads have spent
+     * executing tasks.
+     */
+    long getBusyTime() {
+        return mBusyTime.get();
+    }
+
+    /**
+     * Returns the utilization (between 0 and 1) of the stage since the
+     * previous call.
+     *
+     * @param threadCount The number of threads of the stage
+     */
+    synchronized float sample(int threadCount) {
+        final long now = SystemClock.uptimeMillis();
+        final long elapsed = now - mSampleTime;
+        if (elapsed <= 0 || threadCount <= 0) {
+            return mUtilization;
+        }
+        final long busyTime = mBusyTime.get();
+        mUtilization = Math.min(1f, (busyTime - mSampleBusyTime) / (float) (elapsed * threadCount));
+        mSampleTime = now;
+        mSampleBusyTime = busyTime;
+        return mUtilization;
+    }
+}
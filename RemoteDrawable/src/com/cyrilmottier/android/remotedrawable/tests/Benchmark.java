@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable.tests;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A minimal micro-benchmark harness. An operation is executed a number of
+ * times by one or several threads started at once. Each thread executes a
+ * warm-up phase first so that the measured phase isn't polluted by class
+ * loading or JIT compilation.
+ *
+ * @author Cyril Mottier
+ */
+abstract class Benchmark {
+
+    /**
+     * The result of a benchmark run.
+     */
+    static final class Result {
+
+        final String mName;
+        final int mThreadCount;
+        final long mOperationCount;
+        final long mElapsedNanos;
+
+        Result(String name, int threadCount, long operationCount, long elapsedNanos) {
+            mName = name;
+            mThreadCount = threadCount;
+            mOperationCount = operationCount;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Returns the average wall-clock time of an operation.
+         */
+        double getNanosPerOperation() {
+            return (double) mElapsedNanos / mOperationCount;
+        }
+
+        /**
+         * Returns the number of operations executed per second by all threads.
+         */
+        double getThroughput() {
+            return mOperationCount * 1e9 / Math.max(mElapsedNanos, 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %2d thread(s) %10.1f ns/op %12.0f ops/s", mName, mThreadCount, getNanosPerOperation(), getThroughput());
+        }
+    }
+
+    private final String mName;
+
+    Benchmark(String name) {
+        mName = name;
+    }
+
+    /**
+     * Called once before the threads start.
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * Executes the measured operation.
+     *
+     * @param thread The index of the calling thread
+     * @param index The index of the operation for the calling thread
+     */
+    protected abstract void operation(int thread, int index) throws Exception;
+
+    /**
+     * Called once all threads are done.
+     */
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param threadCount The number of threads executing the operation
+     * @param warmUpCount The number of non-measured operations each thread
+     *            executes first
+     * @param operationCount The number of measured operations each thread
+     *            executes
+     */
+    Result run(int threadCount, final int warmUpCount, final int operationCount) throws Exception {
+        setUp();
+        try {
+            if (threadCount == 1) {
+                // Run in the calling thread (which may be required by the
+                // measured code)
+                for (int i = 0; i < warmUpCount; i++) {
+                    operation(0, i);
+                }
+                final long start = System.nanoTime();
+                for (int i = 0; i < operationCount; i++) {
+                    operation(0, warmUpCount + i);
+                }
+                return new Result(mName, 1, operationCount, System.nanoTime() - start);
+            }
+
+            final CountDownLatch warmedUp = new CountDownLatch(threadCount);
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threadCount);
+            final Exception[] failure = new Exception[1];
+
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                new Thread(mName + " #" + t) {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < warmUpCount; i++) {
+                                operation(thread, i);
+                            }
+                            warmedUp.countDown();
+                            start.await();
+                            for (int i = 0; i < operationCount; i++) {
+                                operation(thread, warmUpCount + i);
+                            }
+                        } catch (Exception e) {
+                            synchronized (failure) {
+                                failure[0] = e;
+                            }
+                            warmedUp.countDown();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+
+            warmedUp.await();
+            final long startTime = System.nanoTime();
+            start.countDown();
+            done.await();
+            final long elapsed = System.nanoTime() - startTime;
+
+            synchronized (failure) {
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            return new Result(mName, threadCount, (long) threadCount * operationCount, elapsed);
+        } finally {
+            tearDown();
+        }
+    }
+}
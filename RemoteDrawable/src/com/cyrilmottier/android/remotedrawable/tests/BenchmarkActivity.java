@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.cyrilmottier.android.remotedrawable.BasicDrawableCache;
+import com.cyrilmottier.android.remotedrawable.DownloadScheduler;
+import com.cyrilmottier.android.remotedrawable.DrawableDownloader;
+import com.cyrilmottier.android.remotedrawable.LongHashMap;
+import com.cyrilmottier.android.remotedrawable.LruDrawableCache;
+import com.cyrilmottier.android.remotedrawable.UrlFingerprint;
+
+/**
+ * Measures the hot paths of the project: the memory caches under concurrent
+ * readers and writers, the heap footprint and lookup latency of the
+ * fingerprint-indexed LongHashMap compared to BasicDrawableCache, the
+ * scheduling overhead of the DownloadScheduler and the hit and miss paths of
+ * DrawableDownloader.getDrawable. Downloads are
+ * served by an in-process HTTP server so that the results don't depend on the
+ * network. The results are displayed and logged.
+ * <p>
+ * Results are only comparable between runs on the same device.
+ *
+ * @author Cyril Mottier
+ */
+public class BenchmarkActivity extends Activity {
+
+    private static final String LOG_TAG = BenchmarkActivity.class.getSimpleName();
+
+    private static final int KEY_COUNT = 512;
+    private static final int WARM_UP_COUNT = 20000;
+    private static final int OPERATION_COUNT = 200000;
+    private static final int[] THREAD_COUNTS = {
+            1, 4
+    };
+
+    private static final int INDEX_ENTRY_COUNT = 20000;
+
+    private static final int SCHEDULED_TASK_COUNT = 5000;
+    private static final int DOWNLOAD_COUNT = 100;
+    private static final int DOWNLOAD_TIMEOUT = 60;
+    private static final int IMAGE_SIZE = 64;
+
+    /**
+     * The operations of a cache benchmarked by this activity.
+     */
+    private static interface CacheAccess {
+        Drawable get(String key);
+
+        void put(String key, Drawable drawable);
+    }
+
+    private final Handler mHandler = new Handler();
+    private final String[] mKeys = new String[KEY_COUNT];
+    private final Drawable[] mDrawables = new Drawable[KEY_COUNT];
+    private TextView mReport;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mReport = new TextView(this);
+        mReport.setTypeface(Typeface.MONOSPACE);
+        final ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(mReport);
+        setContentView(scrollView);
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = "http://www.cyrilmottier.com/benchmark/" + i + ".png";
+            mDrawables[i] = new ColorDrawable(Color.rgb(i & 0xFF, i & 0xFF, i & 0xFF));
+        }
+
+        new Thread("Benchmarks") {
+            @Override
+            public void run() {
+                try {
+                    runBenchmarks();
+                    report("Done");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    report("Failed: " + e);
+                }
+            }
+        }.start();
+    }
+
+    private void runBenchmarks() throws Exception {
+        // BasicDrawableCache isn't thread-safe. It is accessed under a lock as
+        // its clients would have to.
+        final BasicDrawableCache basicCache = new BasicDrawableCache();
+        final CacheAccess basic = new CacheAccess() {
+            public synchronized Drawable get(String key) {
+                return basicCache.get(key);
+            }
+
+            public synchronized void put(String key, Drawable drawable) {
+                basicCache.put(key, drawable);
+            }
+        };
+
+        final LruDrawableCache lruCache = new LruDrawableCache(Integer.MAX_VALUE);
+        final CacheAccess lru = new CacheAccess() {
+            public Drawable get(String key) {
+                return lruCache.get(key);
+            }
+
+            public void put(String key, Drawable drawable) {
+                lruCache.put(key, drawable);
+            }
+        };
+
+        for (int threadCount : THREAD_COUNTS) {
+            report(benchmarkCache("BasicDrawableCache get", basic, 0).run(threadCount, WARM_UP_COUNT, OPERATION_COUNT));
+            report(benchmarkCache("LruDrawableCache get", lru, 0).run(threadCount, WARM_UP_COUNT, OPERATION_COUNT));
+            report(benchmarkCache("BasicDrawableCache 80% get/20% put", basic, 20).run(threadCount, WARM_UP_COUNT, OPERATION_COUNT));
+            report(benchmarkCache("LruDrawableCache 80% get/20% put", lru, 20).run(threadCount, WARM_UP_COUNT, OPERATION_COUNT));
+        }
+
+        benchmarkIndexes();
+        report(benchmarkScheduler());
+        benchmarkDownloader();
+    }
+
+    /**
+     * An entry of the fingerprint index: the key is kept to detect
+     * collisions.
+     */
+    private static final class IndexEntry {
+        final String mKey;
+        final Drawable mDrawable;
+
+        IndexEntry(String key, Drawable drawable) {
+            mKey = key;
+            mDrawable = drawable;
+        }
+    }
+
+    /**
+     * Compares the heap used by and the lookup latency of BasicDrawableCache
+     * and of a LongHashMap indexed by URL fingerprints, both holding
+     * INDEX_ENTRY_COUNT long (Picasa-like) URLs. The URLs themselves are
+     * allocated beforehand and aren't part of the measured footprint. Lookups
+     * use the same String instances: String caches its hash code, which
+     * favors BasicDrawableCache compared to lookups with freshly built keys.
+     */
+    private void benchmarkIndexes() throws Exception {
+        final String[] urls = new String[INDEX_ENTRY_COUNT];
+        for (int i = 0; i < INDEX_ENTRY_COUNT; i++) {
+            urls[i] = "http://lh3.ggpht.com/_c1rIlMoTT3r/TB6qVfUlAvI/AAAAAAAAAXk/" + Integer.toHexString(i * 0x9E3779B9)
+                    + "/s144-c/IMG_" + i + ".jpg";
+        }
+        final Drawable drawable = mDrawables[0];
+
+        long before = usedHeap();
+        final BasicDrawableCache basicCache = new BasicDrawableCache();
+        for (int i = 0; i < INDEX_ENTRY_COUNT; i++) {
+            basicCache.put(urls[i], drawable);
+        }
+        reportFootprint("BasicDrawableCache", usedHeap() - before);
+
+        before = usedHeap();
+        final LongHashMap<IndexEntry> index = new LongHashMap<IndexEntry>();
+        for (int i = 0; i < INDEX_ENTRY_COUNT; i++) {
+            index.put(UrlFingerprint.of(urls[i]), new IndexEntry(urls[i], drawable));
+        }
+        reportFootprint("LongHashMap fingerprint index", usedHeap() - before);
+
+        report(new Benchmark("BasicDrawableCache lookup") {
+            @Override
+            protected void operation(int thread, int index) {
+                if (basicCache.get(urls[(index * 31) % INDEX_ENTRY_COUNT]) == null) {
+                    throw new IllegalStateException("Unexpected cache miss");
+                }
+            }
+        }.run(1, WARM_UP_COUNT, OPERATION_COUNT));
+
+        report(new Benchmark("LongHashMap fingerprint lookup") {
+            @Override
+            protected void operation(int thread, int i) {
+                final String url = urls[(i * 31) % INDEX_ENTRY_COUNT];
+                final IndexEntry entry = index.get(UrlFingerprint.of(url));
+                if (entry == null || !entry.mKey.equals(url)) {
+                    throw new IllegalStateException("Unexpected cache miss");
+                }
+            }
+        }.run(1, WARM_UP_COUNT, OPERATION_COUNT));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void reportFootprint(String name, long bytes) {
+        report(String.format("%-40s %6d entries %10d bytes %6.1f bytes/entry", name, INDEX_ENTRY_COUNT, bytes, (double) bytes / INDEX_ENTRY_COUNT));
+    }
+
+    /**
+     * Returns a benchmark reading (and writing the given percentage of the
+     * operations) random keys of a pre-populated cache.
+     */
+    private Benchmark benchmarkCache(String name, final CacheAccess cache, final int writePercent) {
+        return new Benchmark(name) {
+            @Override
+            protected void setUp() {
+                for (int i = 0; i < KEY_COUNT; i++) {
+                    cache.put(mKeys[i], mDrawables[i]);
+                }
+            }
+
+            @Override
+            protected void operation(int thread, int index) {
+                final int key = (index * 31 + thread * 17) & (KEY_COUNT - 1);
+                if (index % 100 < writePercent) {
+                    cache.put(mKeys[key], mDrawables[key]);
+                } else if (cache.get(mKeys[key]) == null) {
+                    throw new IllegalStateException("Unexpected cache miss");
+                }
+            }
+        };
+    }
+
+    /**
+     * Measures the time needed to schedule and execute no-op tasks.
+     */
+    private Benchmark.Result benchmarkScheduler() throws InterruptedException {
+        final DownloadScheduler scheduler = new DownloadScheduler(3, SCHEDULED_TASK_COUNT);
+        final CountDownLatch executed = new CountDownLatch(SCHEDULED_TASK_COUNT);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < SCHEDULED_TASK_COUNT; i++) {
+            scheduler.schedule(new DownloadScheduler.Task(DrawableDownloader.PRIORITY_NORMAL) {
+                @Override
+                protected void execute() {
+                    executed.countDown();
+                }
+
+                @Override
+                protected void onDropped() {
+                    executed.countDown();
+                }
+            });
+        }
+        executed.await();
+        final long elapsed = System.nanoTime() - start;
+        scheduler.shutdown();
+
+        return new Benchmark.Result("DownloadScheduler schedule+execute", 1, SCHEDULED_TASK_COUNT, elapsed);
+    }
+
+    /**
+     * Measures the miss path (download from the local server and decode) and
+     * the hit path of DrawableDownloader.getDrawable.
+     */
+    private void benchmarkDownloader() throws Exception {
+        final Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.BLUE);
+        final ByteArrayOutputStream image = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, image);
+        bitmap.recycle();
+
+        final LocalHttpServer server = new LocalHttpServer(image.toByteArray(), "image/png");
+        final DrawableDownloader downloader = DrawableDownloader.getInstance();
+        final String run = Long.toString(System.currentTimeMillis());
+
+        try {
+            // Unique URLs: every request goes through the network and the
+            // decoder. The server forbids storing the responses on disk.
+            final CountDownLatch loaded = new CountDownLatch(DOWNLOAD_COUNT);
+            final int[] failures = new int[1];
+            final DrawableDownloader.Callback callback = new DrawableDownloader.Callback() {
+                public void onDrawableLoaded(String urlString, Drawable drawable) {
+                    // Nothing displays the Drawable: its Bitmap may be reused
+                    downloader.release(drawable);
+                    loaded.countDown();
+                }
+
+                public void onDrawablePreviewLoaded(String urlString, Drawable preview, int quality) {
+                }
+
+                public void onDrawableLoadingFailed(String urlString) {
+                    failures[0]++;
+                    loaded.countDown();
+                }
+            };
+
+            final long start = System.nanoTime();
+            mHandler.post(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < DOWNLOAD_COUNT; i++) {
+                        downloader.getDrawable(server.getUrl("/" + run + "/" + i + ".png"), IMAGE_SIZE, IMAGE_SIZE, DrawableDownloader.PRIORITY_VISIBLE,
+                                callback);
+                    }
+                }
+            });
+            if (!loaded.await(DOWNLOAD_TIMEOUT, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Downloads timed out");
+            }
+            report(new Benchmark.Result("DrawableDownloader.getDrawable miss", downloader.getConcurrencyLimiter().getLimit(), DOWNLOAD_COUNT,
+                    System.nanoTime() - start));
+            if (failures[0] > 0) {
+                report(failures[0] + " download(s) failed");
+            }
+
+            // The hit path must be executed on the main thread
+            final String cachedUrl = server.getUrl("/" + run + "/0.png");
+            final Benchmark hit = new Benchmark("DrawableDownloader.getDrawable hit") {
+                @Override
+                protected void operation(int thread, int index) {
+                    final Drawable drawable = downloader.getDrawable(cachedUrl, IMAGE_SIZE, IMAGE_SIZE, DrawableDownloader.PRIORITY_VISIBLE, callback);
+                    if (drawable == null) {
+                        throw new IllegalStateException("Unexpected cache miss");
+                    }
+                    downloader.release(drawable);
+                }
+            };
+            final Benchmark.Result[] hitResult = new Benchmark.Result[1];
+            final Exception[] hitFailure = new Exception[1];
+            final CountDownLatch hitDone = new CountDownLatch(1);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    try {
+                        hitResult[0] = hit.run(1, WARM_UP_COUNT / 10, OPERATION_COUNT / 10);
+                    } catch (Exception e) {
+                        hitFailure[0] = e;
+                    }
+                    hitDone.countDown();
+                }
+            });
+            hitDone.await();
+            if (hitFailure[0] != null) {
+                throw hitFailure[0];
+            }
+            report(hitResult[0]);
+        } finally {
+            server.close();
+        }
+    }
+
+    private void report(Object result) {
+        final String line = result.toString();
+        Log.i(LOG_TAG, line);
+        mHandler.post(new Runnable() {
+            public void run() {
+                mReport.append(line + "\n");
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable.tests;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny in-process HTTP server answering every GET request with the same
+ * body. It is used to benchmark the download path without depending on the
+ * network.
+ *
+ * @author Cyril Mottier
+ */
+final class LocalHttpServer {
+
+    private final ServerSocket mServerSocket;
+    private final byte[] mBody;
+    private final String mContentType;
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile boolean mClosed;
+
+    /**
+     * Starts a new server listening on the loopback interface.
+     *
+     * @param body The body of the responses
+     * @param contentType The content type of the responses
+     */
+    LocalHttpServer(byte[] body, String contentType) throws IOException {
+        mBody = body;
+        mContentType = contentType;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        final Thread acceptThread = new Thread("LocalHttpServer") {
+            @Override
+            public void run() {
+                while (!mClosed) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread("LocalHttpServer connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        if (!mClosed) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the URL of the given path on this server.
+     */
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serves the requests of a persistent connection until the client closes
+     * it.
+     */
+    private void serve(Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final String header = "HTTP/1.1 200 OK\r\nContent-Type: " + mContentType + "\r\nContent-Length: " + mBody.length
+                    + "\r\nCache-Control: no-store\r\n\r\n";
+            final byte[] headerBytes = header.getBytes("US-ASCII");
+
+            while (skipRequest(in)) {
+                mRequestCount.incrementAndGet();
+                out.write(headerBytes);
+                out.write(mBody);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Reads a request (line and headers) and returns false if the connection
+     * has been closed. Requests are expected to have no body.
+     */
+    private static boolean skipRequest(InputStream in) throws IOException {
+        int lineLength = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                // An empty line ends the headers
+                if (lineLength == 0) {
+                    return true;
+                }
+                lineLength = 0;
+            } else if (c != '\r') {
+                lineLength++;
+            }
+        }
+        return false;
+    }
+}
@@ -16,31 +16,79 @@
 
 package com.cyrilmottier.android.remotedrawable.tests;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 
+import com.cyrilmottier.android.remotedrawable.DiskDrawableCache;
+import com.cyrilmottier.android.remotedrawable.DrawableDownloader;
+import com.cyrilmottier.android.remotedrawable.HistogramMetricsListener;
+import com.cyrilmottier.android.remotedrawable.MetricsListener;
 import com.cyrilmottier.android.remotedrawable.R;
 import com.cyrilmottier.android.remotedrawable.RemoteDrawable;
+import com.cyrilmottier.android.remotedrawable.Transformation;
+import com.cyrilmottier.android.remotedrawable.Transformations;
+import com.cyrilmottier.android.remotedrawable.util.Config;
 
 public class MainActivity extends Activity {
 
+    private static final String LOG_TAG = MainActivity.class.getSimpleName();
+
     private static final String PHOTO_URL_1 = "http://lh4.ggpht.com/_OHO4y8YcQbs/So-RqqF20zI/AAAAAAAALBo/E3AyJZH8dQM/s800/P1090212.JPG";
     private static final String PHOTO_URL_2 = "http://lh4.ggpht.com/_OHO4y8YcQbs/So4bVoPnrnI/AAAAAAAAKu4/YKpcgLiX--g/s800/P1080885.JPG";
     private static final String PHOTO_URL_3 = "http://lh4.ggpht.com/_OHO4y8YcQbs/SpDMgpLlfKI/AAAAAAAALLE/SixfPkpLB40/s800/P1090391.JPG";
     private static final String PHOTO_URL_4 = "http://lh3.ggpht.com/_OHO4y8YcQbs/SoWDYIhFrjI/AAAAAAAAKX4/ETS4JGuUYX0/s800/P1080412.JPG";
 
     private static final int TRANSITION_DURATION = 4000;
+    private static final float CORNER_RADIUS = 12.0f;
+
+    private static final String DISK_CACHE_DIRECTORY = "drawables";
+    private static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Set once the disk cache is being opened. Only accessed from the main
+     * thread.
+     */
+    private static boolean sDiskCacheOpening;
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
 
+        final DrawableDownloader downloader = DrawableDownloader.getInstance();
+        if (downloader.getDiskCache() == null && !sDiskCacheOpening) {
+            /*
+             * Opening the cache replays its journal from the disk: it's done
+             * off the UI thread. The requests issued in the meantime simply
+             * don't use the disk cache.
+             */
+            sDiskCacheOpening = true;
+            final File directory = new File(getCacheDir(), DISK_CACHE_DIRECTORY);
+            new Thread("DiskDrawableCache opener") {
+                @Override
+                public void run() {
+                    try {
+                        downloader.setDiskCache(DiskDrawableCache.open(directory, DISK_CACHE_SIZE));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }.start();
+        }
+        downloader.setProgressiveLoadingEnabled(true);
+        if (Config.DEBUG_LOGS_PROJECT_ENABLED && downloader.getMetricsListener() == null) {
+            downloader.setMetricsListener(new HistogramMetricsListener());
+        }
+
         TransitionDrawable transition = (TransitionDrawable) getResources().getDrawable(R.drawable.transition);
 
         View v = findViewById(R.id.textView1);
@@ -57,8 +105,22 @@ public class MainActivity extends Activity {
         v.setBackgroundDrawable(d);
 
         v = findViewById(R.id.textView4);
-        d = new RemoteDrawable(new ColorDrawable(Color.RED), PHOTO_URL_4);
+        d = new RemoteDrawable(new ColorDrawable(Color.RED), PHOTO_URL_4, new Transformation[] {
+                Transformations.centerCrop(), Transformations.roundCorners(CORNER_RADIUS)
+        });
         v.setBackgroundDrawable(d);
 
     }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        final DrawableDownloader downloader = DrawableDownloader.getInstance();
+        final MetricsListener listener = downloader.getMetricsListener();
+        if (listener instanceof HistogramMetricsListener) {
+            Log.d(LOG_TAG, ((HistogramMetricsListener) listener).dump());
+            Log.d(LOG_TAG, "Utilization: download " + downloader.getScheduler().getUtilization() + ", decode "
+                    + downloader.getDecodeStage().getUtilization() + " (blocked " + downloader.getDecodeStage().getBlockedCount() + " times)");
+        }
+    }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the journal of the DiskDrawableCache: the entries, their metadata and
+ * their LRU order must survive a restart, and a journal damaged by a crash
+ * must never make the cache serve incomplete bytes. The cache only relies on
+ * java.io: these tests run in a temporary directory, on a device or on a
+ * plain JVM with JUnit (only DiskDrawableCache is needed on the classpath).
+ *
+ * @author Cyril Mottier
+ */
+public class DiskDrawableCacheTest extends TestCase {
+
+    private static final long MAX_SIZE = 30;
+
+    private File mDirectory;
+    private DiskDrawableCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("DiskDrawableCacheTest", "");
+        mDirectory.delete();
+        mCache = DiskDrawableCache.open(mDirectory, MAX_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testEntriesSurviveReopening() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000, "\"etag a\"", "Sat, 01 Jan 2000 00:00:00 GMT");
+        mCache.put("http://b", bytes(5, 2), DiskDrawableCache.NEVER_EXPIRES);
+        reopen();
+
+        final DiskDrawableCache.Snapshot a = mCache.get("http://a");
+        assertNotNull(a);
+        assertTrue(Arrays.equals(bytes(10, 1), a.getData()));
+        assertEquals(1000, a.getExpiry());
+        assertEquals("\"etag a\"", a.getETag());
+        assertEquals("Sat, 01 Jan 2000 00:00:00 GMT", a.getLastModified());
+
+        final DiskDrawableCache.Snapshot b = mCache.get("http://b");
+        assertNotNull(b);
+        assertTrue(Arrays.equals(bytes(5, 2), b.getData()));
+        assertNull(b.getETag());
+        assertNull(b.getLastModified());
+        assertFalse(b.isExpired(System.currentTimeMillis()));
+
+        assertEquals(15, mCache.size());
+    }
+
+    public void testUpdateAndRemoveAreJournaled() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.put("http://b", bytes(10, 2), 1000);
+        assertTrue(mCache.update("http://a", 2000, "\"v2\"", null));
+        assertTrue(mCache.remove("http://b"));
+        assertFalse(mCache.remove("http://b"));
+        reopen();
+
+        final DiskDrawableCache.Snapshot a = mCache.get("http://a");
+        assertEquals(2000, a.getExpiry());
+        assertEquals("\"v2\"", a.getETag());
+        assertTrue(Arrays.equals(bytes(10, 1), a.getData()));
+        assertNull(mCache.get("http://b"));
+        assertEquals(10, mCache.size());
+        assertEquals(1, contentFileCount());
+    }
+
+    public void testTruncatedLastLineIsIgnored() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.put("http://b", bytes(10, 2), 1000);
+        mCache.close();
+
+        // A crash while appending a line
+        final Writer writer = new FileWriter(journal(), true);
+        writer.write("CLEAN 0123456789abcdef 10");
+        writer.close();
+        mCache = DiskDrawableCache.open(mDirectory, MAX_SIZE);
+
+        assertNotNull(mCache.get("http://a"));
+        assertNotNull(mCache.get("http://b"));
+        // The journal has been rebuilt: it can be read again
+        reopen();
+        assertNotNull(mCache.get("http://a"));
+        assertNotNull(mCache.get("http://b"));
+    }
+
+    public void testCorruptedJournalEmptiesTheCache() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.close();
+
+        final Writer writer = new FileWriter(journal());
+        writer.write("garbage\n");
+        writer.close();
+        mCache = DiskDrawableCache.open(mDirectory, MAX_SIZE);
+
+        assertNull(mCache.get("http://a"));
+        assertEquals(0, mCache.size());
+        // The content file isn't referenced anymore
+        assertEquals(0, contentFileCount());
+    }
+
+    public void testUncommittedFilesAreDeleted() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.close();
+
+        // Files written right before a crash, never referenced by the journal
+        final FileOutputStream out = new FileOutputStream(new File(mDirectory, DiskDrawableCache.digestOf(bytes(7, 3)) + ".tmp1"));
+        out.write(bytes(7, 3));
+        out.close();
+        new FileOutputStream(new File(mDirectory, DiskDrawableCache.digestOf(bytes(8, 4)))).close();
+        mCache = DiskDrawableCache.open(mDirectory, MAX_SIZE);
+
+        assertEquals(1, contentFileCount());
+        assertTrue(Arrays.equals(bytes(10, 1), mCache.get("http://a").getData()));
+    }
+
+    public void testLeastRecentlyReadEntryIsEvicted() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.put("http://b", bytes(10, 2), 1000);
+        mCache.put("http://c", bytes(10, 3), 1000);
+        // Makes b the least recently used entry. The read order is journaled.
+        mCache.get("http://a");
+        reopen();
+
+        mCache.put("http://d", bytes(10, 4), 1000);
+        assertNull(mCache.get("http://b"));
+        assertNotNull(mCache.get("http://a"));
+        assertNotNull(mCache.get("http://c"));
+        assertNotNull(mCache.get("http://d"));
+        assertEquals(MAX_SIZE, mCache.size());
+    }
+
+    public void testReadsAreFlushedWithTheNextWrite() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        final int lineCount = journalLineCount();
+        mCache.get("http://a");
+        mCache.get("http://a");
+        // Reads don't cost a write each
+        assertEquals(lineCount, journalLineCount());
+
+        mCache.put("http://b", bytes(10, 2), 1000);
+        assertEquals(lineCount + 3, journalLineCount());
+    }
+
+    public void testTooLargeEntryIsNotStored() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        assertNull(mCache.put("http://a", bytes((int) MAX_SIZE + 1, 2), 1000));
+        assertNull(mCache.get("http://a"));
+        assertEquals(0, mCache.size());
+    }
+
+    public void testSharedContentIsStoredOnce() throws IOException {
+        final String digest = mCache.put("http://a", bytes(10, 1), 1000);
+        assertEquals(digest, mCache.put("http://mirror/a", bytes(10, 1), 1000));
+        assertEquals(10, mCache.size());
+        assertEquals(1, contentFileCount());
+
+        // The file is kept as long as an entry uses it
+        mCache.remove("http://a");
+        reopen();
+        assertTrue(Arrays.equals(bytes(10, 1), mCache.get("http://mirror/a").getData()));
+        mCache.remove("http://mirror/a");
+        assertEquals(0, mCache.size());
+        assertEquals(0, contentFileCount());
+    }
+
+    public void testEvictionSparesSharedContent() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        mCache.put("http://mirror/a", bytes(10, 1), 1000);
+        mCache.put("http://b", bytes(10, 2), 1000);
+        mCache.put("http://c", bytes(10, 3), 1000);
+
+        /*
+         * http://a is the least recently used entry but evicting it would free
+         * nothing: http://b goes instead.
+         */
+        mCache.put("http://d", bytes(10, 4), 1000);
+        assertEquals(MAX_SIZE, mCache.size());
+        assertNull(mCache.get("http://b"));
+        assertNotNull(mCache.get("http://a"));
+        assertNotNull(mCache.get("http://mirror/a"));
+        assertNotNull(mCache.get("http://c"));
+        assertNotNull(mCache.get("http://d"));
+    }
+
+    public void testJournalIsCompacted() throws IOException {
+        mCache.put("http://a", bytes(10, 1), 1000);
+        for (int i = 0; i < 3000; i++) {
+            mCache.get("http://a");
+        }
+        assertTrue(journalLineCount() < 2000);
+        reopen();
+        assertTrue(Arrays.equals(bytes(10, 1), mCache.get("http://a").getData()));
+    }
+
+    private void reopen() throws IOException {
+        mCache.close();
+        mCache = DiskDrawableCache.open(mDirectory, MAX_SIZE);
+    }
+
+    private File journal() {
+        return new File(mDirectory, DiskDrawableCache.JOURNAL_FILE);
+    }
+
+    private int journalLineCount() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal()), "US-ASCII"));
+        try {
+            int count = 0;
+            while (reader.readLine() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int contentFileCount() {
+        return mDirectory.list().length - 1;
+    }
+
+    /**
+     * Returns length bytes depending on the given seed.
+     */
+    private static byte[] bytes(int length, int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed * 31 + i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests the coalescing of the requests of the DrawableDownloader: concurrent
+ * requests for the same Drawable share a single download. The downloader
+ * must be used from the main thread and delivers the Drawables on it: the
+ * requests are made on the main thread and the test waits for the
+ * callbacks.
+ *
+ * @author Cyril Mottier
+ */
+public class DrawableDownloaderTest extends InstrumentationTestCase {
+
+    private static final long TIMEOUT = 10 * 1000;
+
+    private DrawableDownloader mDownloader;
+    private StubHttpServer mServer;
+    private byte[] mImage;
+
+    /**
+     * Responses are held until released so that the requests of a test
+     * overlap.
+     */
+    private final CountDownLatch mResponseLatch = new CountDownLatch(1);
+
+    /**
+     * Each test uses its own URL: the downloader is a singleton whose caches
+     * outlive the tests.
+     */
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Bitmap bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        mImage = out.toByteArray();
+
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            public void handle(StubHttpServer.Request request, StubHttpServer.Connection connection) throws IOException {
+                try {
+                    mResponseLatch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                connection.respond(200, mImage, "Content-Type: image/png", "Cache-Control: max-age=60");
+            }
+        });
+        // The downloader binds its Handler to the thread creating it
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                mDownloader = DrawableDownloader.getInstance();
+            }
+        });
+        mUrl = mServer.getUrl("/image/" + getName() + "/" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mResponseLatch.countDown();
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testConcurrentRequestsShareOneDownload() throws InterruptedException {
+        final RecordingCallback first = new RecordingCallback();
+        final RecordingCallback second = new RecordingCallback();
+        assertNull(request(first));
+        assertNull(request(second));
+
+        mResponseLatch.countDown();
+        first.await();
+        second.await();
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, first.mLoaded.size());
+        assertEquals(1, second.mLoaded.size());
+        assertEquals(0, first.mFailureCount + second.mFailureCount);
+        first.release();
+        second.release();
+    }
+
+    public void testCancellingOneRequestKeepsTheSharedDownload() throws InterruptedException {
+        final RecordingCallback cancelled = new RecordingCallback();
+        final RecordingCallback kept = new RecordingCallback();
+        request(cancelled);
+        request(kept);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                mDownloader.cancel(mUrl, 0, 0, cancelled);
+            }
+        });
+
+        mResponseLatch.countDown();
+        kept.await();
+
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(1, kept.mLoaded.size());
+        assertEquals(0, cancelled.mLoaded.size());
+        kept.release();
+    }
+
+    public void testLaterRequestIsServedFromMemory() throws InterruptedException {
+        final RecordingCallback first = new RecordingCallback();
+        request(first);
+        mResponseLatch.countDown();
+        first.await();
+        first.release();
+
+        final Drawable cached = request(new RecordingCallback());
+        assertNotNull(cached);
+        assertEquals(1, mServer.getRequestCount());
+        mDownloader.release(cached);
+    }
+
+    /**
+     * Requests the Drawable of the test from the main thread.
+     */
+    private Drawable request(final RecordingCallback callback) {
+        final Drawable[] drawable = new Drawable[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                drawable[0] = mDownloader.getDrawable(mUrl, callback);
+            }
+        });
+        return drawable[0];
+    }
+
+    private final class RecordingCallback implements DrawableDownloader.Callback {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /*
+         * Only accessed from the main thread until mDone is released.
+         */
+        final ArrayList<Drawable> mLoaded = new ArrayList<Drawable>();
+        int mFailureCount;
+
+        public void onDrawableLoaded(String urlString, Drawable drawable) {
+            mLoaded.add(drawable);
+            mDone.countDown();
+        }
+
+        public void onDrawablePreviewLoaded(String urlString, Drawable preview, int quality) {
+        }
+
+        public void onDrawableLoadingFailed(String urlString) {
+            mFailureCount++;
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("No callback for " + mUrl, mDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        /**
+         * Releases the delivered Drawables, as clients must.
+         */
+        void release() {
+            for (Drawable drawable : mLoaded) {
+                mDownloader.release(drawable);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.InputStream;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the freshness lifetimes and validators computed from the caching
+ * headers of the responses.
+ *
+ * @author Cyril Mottier
+ */
+public class HttpCachePolicyTest extends TestCase {
+
+    private static final String DATE = "Sat, 01 Jan 2000 00:00:00 GMT";
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DEFAULT_LIFETIME = 24 * HOUR;
+    private static final long NOW = 1000000;
+
+    public void testMaxAgeTakesAgeIntoAccount() {
+        final HttpCachePolicy policy = policy("Cache-Control", "public, max-age=100", "Age", "40");
+        assertEquals(NOW + 60 * 1000, policy.mExpiry);
+        assertFalse(policy.mNoStore);
+    }
+
+    public void testMaxAgeOverridesExpires() {
+        final HttpCachePolicy policy = policy("Cache-Control", "max-age=10", "Date", DATE, "Expires", "Sat, 01 Jan 2000 01:00:00 GMT");
+        assertEquals(NOW + 10 * 1000, policy.mExpiry);
+    }
+
+    public void testNoCacheExpiresImmediately() {
+        assertEquals(NOW, policy("Cache-Control", "no-cache, max-age=100").mExpiry);
+    }
+
+    public void testNoStore() {
+        assertTrue(policy("Cache-Control", "no-store").mNoStore);
+    }
+
+    public void testExpiresIsRelativeToDate() {
+        final HttpCachePolicy policy = policy("Date", DATE, "Expires", "Sat, 01 Jan 2000 01:00:00 GMT");
+        assertEquals(NOW + HOUR, policy.mExpiry);
+    }
+
+    public void testInvalidExpiresMeansExpired() {
+        assertEquals(NOW, policy("Date", DATE, "Expires", "0").mExpiry);
+    }
+
+    public void testHeuristicLifetimeFromLastModified() {
+        // Modified 10 hours before the response: fresh for a tenth of it
+        final HttpCachePolicy policy = policy("Date", "Sat, 01 Jan 2000 10:00:00 GMT", "Last-Modified", DATE);
+        assertEquals(NOW + HOUR, policy.mExpiry);
+        assertEquals(DATE, policy.mLastModified);
+    }
+
+    public void testDefaultLifetime() {
+        assertEquals(NOW + DEFAULT_LIFETIME, policy().mExpiry);
+    }
+
+    public void testMergeKeepsPreviousValidators() {
+        final HttpCachePolicy merged = policy("Cache-Control", "max-age=10").merge("\"v1\"", DATE);
+        assertEquals(NOW + 10 * 1000, merged.mExpiry);
+        assertEquals("\"v1\"", merged.mETag);
+        assertEquals(DATE, merged.mLastModified);
+
+        final HttpCachePolicy replaced = policy("ETag", "\"v2\"").merge("\"v1\"", DATE);
+        assertEquals("\"v2\"", replaced.mETag);
+    }
+
+    /**
+     * Returns the policy of a response with the given headers (names and
+     * values).
+     */
+    private static HttpCachePolicy policy(String... headers) {
+        final HashMap<String, String> fields = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2) {
+            fields.put(headers[i], headers[i + 1]);
+        }
+        final Transport.Response response = new Transport.Response() {
+            @Override
+            public int getResponseCode() {
+                return 200;
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                return fields.get(name);
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return null;
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+        return HttpCachePolicy.fromResponse(response, NOW, DEFAULT_LIFETIME);
+    }
+}
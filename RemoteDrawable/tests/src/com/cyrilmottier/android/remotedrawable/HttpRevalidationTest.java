@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests the conditional revalidation of expired entries against a stub
+ * server: the validators of the cached response are sent, a "304 Not
+ * Modified" response refreshes the entry without transferring its bytes
+ * again nor decoding them and a modified resource is sent in full. The
+ * DrawableDownloader test requires a device.
+ *
+ * @author Cyril Mottier
+ */
+public class HttpRevalidationTest extends InstrumentationTestCase {
+
+    private static final String LAST_MODIFIED = "Sat, 01 Jan 2000 00:00:00 GMT";
+
+    private volatile String mETag = "\"v1\"";
+    private volatile byte[] mBody = "first version".getBytes();
+
+    private StubHttpServer mServer;
+    private HttpTransport mTransport;
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            public void handle(StubHttpServer.Request request, StubHttpServer.Connection connection) throws IOException {
+                if (mETag.equals(request.getHeader("If-None-Match"))) {
+                    // Validators may be omitted from a 304 response
+                    connection.respond(304, null, "Cache-Control: max-age=60");
+                } else {
+                    connection.respond(200, mBody, "ETag: " + mETag, "Last-Modified: " + LAST_MODIFIED, "Cache-Control: max-age=0");
+                }
+            }
+        });
+        mTransport = new HttpTransport();
+        mUrl = mServer.getUrl("/image");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testFirstRequestIsUnconditional() throws IOException {
+        final Transport.Response response = mTransport.open(mUrl, null, null);
+        assertEquals(HttpURLConnection.HTTP_OK, response.getResponseCode());
+        assertTrue(Arrays.equals(mBody, read(response)));
+        assertEquals(mETag, response.getHeaderField("ETag"));
+
+        final StubHttpServer.Request request = mServer.getRequests().get(0);
+        assertNull(request.getHeader("If-None-Match"));
+        assertNull(request.getHeader("If-Modified-Since"));
+    }
+
+    public void testValidatorsAreSent() throws IOException {
+        final Transport.Response response = mTransport.open(mUrl, "\"v1\"", LAST_MODIFIED);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.getResponseCode());
+        assertEquals(0, read(response).length);
+
+        final StubHttpServer.Request request = mServer.getRequests().get(0);
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, request.getHeader("If-Modified-Since"));
+    }
+
+    public void testModifiedResourceIsSentInFull() throws IOException {
+        mETag = "\"v2\"";
+        mBody = "second version".getBytes();
+
+        final Transport.Response response = mTransport.open(mUrl, "\"v1\"", LAST_MODIFIED);
+        assertEquals(HttpURLConnection.HTTP_OK, response.getResponseCode());
+        assertTrue(Arrays.equals(mBody, read(response)));
+        assertEquals("\"v2\"", response.getHeaderField("ETag"));
+    }
+
+    /**
+     * Requests a Drawable that expires immediately twice through the
+     * DrawableDownloader. The second request revalidates the disk cache entry
+     * and, on a "304 Not Modified" response, gets the Drawable decoded by the
+     * first one.
+     */
+    public void testNotModifiedResponseReusesTheDecodedDrawable() throws IOException, InterruptedException {
+        final Bitmap bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        mBody = out.toByteArray();
+        // The downloader is a singleton whose caches outlive the tests
+        mUrl = mServer.getUrl("/image/" + System.nanoTime());
+
+        final File directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "HttpRevalidationTest");
+        final DiskDrawableCache diskCache = DiskDrawableCache.open(directory, 1024 * 1024);
+        final DrawableDownloader[] downloader = new DrawableDownloader[1];
+        final DiskDrawableCache[] previousDiskCache = new DiskDrawableCache[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                downloader[0] = DrawableDownloader.getInstance();
+                previousDiskCache[0] = downloader[0].getDiskCache();
+                downloader[0].setDiskCache(diskCache);
+            }
+        });
+        try {
+            final Drawable first = download(downloader[0]);
+            final Drawable second = download(downloader[0]);
+
+            assertEquals(2, mServer.getRequestCount());
+            final StubHttpServer.Request request = mServer.getRequests().get(1);
+            assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+            assertEquals(LAST_MODIFIED, request.getHeader("If-Modified-Since"));
+            // Not decoded again: both share the same pixels
+            assertSame(((BitmapDrawable) first).getBitmap(), ((BitmapDrawable) second).getBitmap());
+
+            final DiskDrawableCache.Snapshot snapshot = diskCache.get(mUrl);
+            assertFalse(snapshot.isExpired(System.currentTimeMillis()));
+            assertEquals("\"v1\"", snapshot.getETag());
+            downloader[0].release(first);
+            downloader[0].release(second);
+        } finally {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                public void run() {
+                    downloader[0].setDiskCache(previousDiskCache[0]);
+                }
+            });
+            diskCache.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Requests the Drawable of the test from the main thread and waits for
+     * it.
+     */
+    private Drawable download(final DrawableDownloader downloader) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Drawable[] drawable = new Drawable[1];
+        // Strongly referenced: callbacks are weakly referenced
+        final DrawableDownloader.Callback callback = new DrawableDownloader.Callback() {
+            public void onDrawableLoaded(String urlString, Drawable d) {
+                drawable[0] = d;
+                done.countDown();
+            }
+
+            public void onDrawablePreviewLoaded(String urlString, Drawable preview, int quality) {
+            }
+
+            public void onDrawableLoadingFailed(String urlString) {
+                done.countDown();
+            }
+        };
+        getInstrumentation().runOnMainSync(new Runnable() {
+            public void run() {
+                final Drawable cached = downloader.getDrawable(mUrl, callback);
+                if (cached != null) {
+                    drawable[0] = cached;
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(10 * 1000, TimeUnit.MILLISECONDS));
+        assertNotNull("No Drawable for " + mUrl, drawable[0]);
+        return drawable[0];
+    }
+
+    private static byte[] read(Transport.Response response) throws IOException {
+        final InputStream is = response.getInputStream();
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
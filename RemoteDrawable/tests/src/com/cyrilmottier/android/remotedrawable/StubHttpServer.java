@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process HTTP server whose responses are scripted by the tests. It
+ * records the requests it receives and serves persistent connections.
+ *
+ * @author Cyril Mottier
+ */
+final class StubHttpServer {
+
+    /**
+     * Interface definition of the script of a server. It is invoked on a
+     * thread of the server for each request.
+     */
+    static interface Handler {
+        void handle(Request request, Connection connection) throws IOException;
+    }
+
+    /**
+     * A received request.
+     */
+    static final class Request {
+
+        final String mMethod;
+        final String mPath;
+        private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+        Request(String method, String path) {
+            mMethod = method;
+            mPath = path;
+        }
+
+        /**
+         * Returns the value of the header with the given (case-insensitive)
+         * name or null.
+         */
+        String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * The connection a request has been received on.
+     */
+    static final class Connection {
+
+        private final Socket mSocket;
+        private final OutputStream mOut;
+        private boolean mClosed;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = socket.getOutputStream();
+        }
+
+        /**
+         * Sends a response.
+         *
+         * @param responseCode The status of the response
+         * @param body The body of the response or null
+         * @param headers Additional headers ("Name: value"). A Content-Length
+         *            header may be given to announce a wrong length.
+         */
+        void respond(int responseCode, byte[] body, String... headers) throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(responseCode).append(" Stub\r\n");
+            boolean hasContentLength = false;
+            for (String header : headers) {
+                sb.append(header).append("\r\n");
+                hasContentLength |= header.regionMatches(true, 0, "Content-Length:", 0, 15);
+            }
+            if (responseCode != 304 && !hasContentLength) {
+                sb.append("Content-Length: ").append((body != null) ? body.length : 0).append("\r\n");
+            }
+            sb.append("\r\n");
+            mOut.write(sb.toString().getBytes("US-ASCII"));
+            if (body != null && responseCode != 304) {
+                mOut.write(body);
+            }
+            mOut.flush();
+        }
+
+        /**
+         * Closes the connection abruptly: the client gets a connection reset.
+         */
+        void reset() throws IOException {
+            mSocket.setSoLinger(true, 0);
+            close();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        void close() throws IOException {
+            mClosed = true;
+            mSocket.close();
+        }
+
+        /**
+         * Waits the given time (in milliseconds) without answering.
+         */
+        void stall(long duration) {
+            try {
+                Thread.sleep(duration);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<Request> mRequests = new CopyOnWriteArrayList<Request>();
+    private volatile boolean mClosed;
+
+    /**
+     * Starts a new server listening on the loopback interface.
+     */
+    StubHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        final Thread acceptThread = new Thread("StubHttpServer") {
+            @Override
+            public void run() {
+                while (!mClosed) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        final Thread thread = new Thread("StubHttpServer connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        if (!mClosed) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the URL of the given path on this server.
+     */
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Returns the requests received so far, in order.
+     */
+    List<Request> getRequests() {
+        return mRequests;
+    }
+
+    int getRequestCount() {
+        return mRequests.size();
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            final Connection connection = new Connection(socket);
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            Request request;
+            while (!connection.mClosed && (request = readRequest(in)) != null) {
+                mRequests.add(request);
+                mHandler.handle(request, connection);
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Reads a request (line and headers) or returns null if the connection
+     * has been closed. Requests are expected to have no body.
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        final String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        final Request request = new Request(parts[0], parts[1]);
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                request.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                return sb.toString();
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+}
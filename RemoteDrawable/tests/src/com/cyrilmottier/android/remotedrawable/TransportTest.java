@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2010 Cyril Mottier (http://www.cyrilmottier.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyrilmottier.android.remotedrawable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the timeouts and the classification of the failures of the
+ * transports against a stub server simulating stalls, resets and error
+ * responses, as well as the backoff of the retries.
+ *
+ * @author Cyril Mottier
+ */
+public class TransportTest extends TestCase {
+
+    private static final int TIMEOUT = 500;
+    private static final byte[] BODY = "body".getBytes();
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            public void handle(StubHttpServer.Request request, StubHttpServer.Connection connection) throws IOException {
+                final String path = request.mPath;
+                if (path.equals("/stall")) {
+                    connection.stall(TIMEOUT * 4);
+                    connection.close();
+                } else if (path.equals("/stall-body")) {
+                    // Announces more bytes than sent
+                    connection.respond(200, BODY, "Content-Length: 100");
+                    connection.stall(TIMEOUT * 4);
+                    connection.close();
+                } else if (path.equals("/reset")) {
+                    connection.reset();
+                } else if (path.startsWith("/status/")) {
+                    connection.respond(Integer.parseInt(path.substring(8)), null);
+                } else {
+                    connection.respond(200, BODY);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testStalledResponseTimesOut() {
+        final HttpTransport transport = newTransport(new HttpTransport());
+        final long start = System.currentTimeMillis();
+        final DownloadException e = open(transport, "/stall");
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT * 3);
+        assertTrue(e.isRetryable());
+        assertTrue(e.getCause() instanceof SocketTimeoutException);
+    }
+
+    public void testStalledBodyTimesOut() throws IOException {
+        final HttpTransport transport = newTransport(new HttpTransport());
+        final InputStream is = transport.open(mServer.getUrl("/stall-body"), null, null).getInputStream();
+        try {
+            while (is.read() != -1) {
+                // Blocks once the sent bytes have been read
+            }
+            fail("The body should time out");
+        } catch (SocketTimeoutException e) {
+            assertTrue(Transport.classify(e, "/stall-body").isRetryable());
+        } finally {
+            is.close();
+        }
+    }
+
+    public void testResetIsRetryable() {
+        assertTrue(open(newTransport(new HttpTransport()), "/reset").isRetryable());
+    }
+
+    public void testServerErrorsAreRetryable() {
+        final HttpTransport transport = newTransport(new HttpTransport());
+        for (int responseCode : new int[] { 500, 503, 408, 429 }) {
+            final DownloadException e = open(transport, "/status/" + responseCode);
+            assertTrue("HTTP " + responseCode, e.isRetryable());
+            assertEquals(responseCode, e.getResponseCode());
+        }
+    }
+
+    public void testClientErrorsArePermanent() {
+        final HttpTransport transport = newTransport(new HttpTransport());
+        for (int responseCode : new int[] { 400, 403, 404, 410 }) {
+            assertFalse("HTTP " + responseCode, open(transport, "/status/" + responseCode).isRetryable());
+        }
+    }
+
+    public void testAsynchronousFetchTimesOut() throws InterruptedException {
+        final NioTransport transport = newTransport(new NioTransport());
+        try {
+            final DownloadException e = fetch(transport, "/stall");
+            assertTrue(e.isRetryable());
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+            assertTrue(fetch(transport, "/reset").isRetryable());
+            assertFalse(fetch(transport, "/status/404").isRetryable());
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testRetryDelayGrowsExponentiallyWithJitter() {
+        final Transport transport = new HttpTransport();
+        transport.setRetryPolicy(5, 100, 1000);
+        final long[] maxDelays = { 100, 200, 400, 800, 1000, 1000 };
+        for (int attempt = 1; attempt <= maxDelays.length; attempt++) {
+            final long maxDelay = maxDelays[attempt - 1];
+            for (int i = 0; i < 50; i++) {
+                final long delay = transport.getRetryDelay(attempt);
+                assertTrue("Attempt " + attempt + ": " + delay, delay >= maxDelay / 2 && delay <= maxDelay);
+            }
+        }
+    }
+
+    private <T extends Transport> T newTransport(T transport) {
+        transport.setTimeouts(TIMEOUT, TIMEOUT);
+        return transport;
+    }
+
+    /**
+     * Opens the given path and returns the failure.
+     */
+    private DownloadException open(HttpTransport transport, String path) {
+        try {
+            transport.open(mServer.getUrl(path), null, null).getInputStream().close();
+        } catch (DownloadException e) {
+            return e;
+        } catch (IOException e) {
+            fail("Unclassified failure: " + e);
+        }
+        fail("Opening " + path + " should fail");
+        return null;
+    }
+
+    /**
+     * Fetches the given path asynchronously and returns the failure.
+     */
+    private DownloadException fetch(Transport transport, String path) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final DownloadException[] failure = new DownloadException[1];
+        transport.fetch(mServer.getUrl(path), null, null, null, new Transport.FetchCallback() {
+            public void onFetched(Transport.Response response, byte[] body) {
+                done.countDown();
+            }
+
+            public void onFetchFailed(DownloadException e) {
+                failure[0] = e;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT * 4, TimeUnit.MILLISECONDS));
+        assertNotNull("Fetching " + path + " should fail", failure[0]);
+        return failure[0];
+    }
+}